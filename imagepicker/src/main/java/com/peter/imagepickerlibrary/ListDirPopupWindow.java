@@ -17,6 +17,7 @@ import android.widget.TextView;
 
 import com.peter.imagepickerlibrary.model.FolderModel;
 import com.peter.imagepickerlibrary.utils.ImageLoader;
+import com.peter.imagepickerlibrary.utils.LoadScope;
 
 import java.util.List;
 
@@ -28,7 +29,10 @@ public class ListDirPopupWindow extends PopupWindow {
     private int height;
     private View convertView;
     private ListView listView;
+    private PopupAdapter adapter;
     private List<FolderModel> dataList;
+    private int coverSize;
+    private LoadScope loadScope;        // covers still loading when the pop-up is dismissed are cancelled
 
     public interface OnDirSelectListener{
         void onSelected(FolderModel folderModel);
@@ -70,11 +74,30 @@ public class ListDirPopupWindow extends PopupWindow {
 
         initView(context);
         initEvent();
+
+        // decode the covers of the rows shown first while the user is still looking at the grid
+        coverSize = context.getResources().getDimensionPixelSize(R.dimen.cover_size);
+        loadScope = ImageLoader.getInstance(3, ImageLoader.Type.LIFO).newScope();
+        ImageLoader.getInstance(3, ImageLoader.Type.LIFO).prefetchCovers(dataList, coverSize, height / coverSize + 2);
     }
 
     private void initView(Context context) {
         listView = (ListView) convertView.findViewById(R.id.pop_up_list);
-        listView.setAdapter(new PopupAdapter(context, dataList));
+        adapter = new PopupAdapter(context, dataList);
+        listView.setAdapter(adapter);
+    }
+
+    /**
+     * Call it after adding folders to the list, e.g. from a FileSystemScanner
+     */
+    public void notifyDataSetChanged() {
+        adapter.notifyDataSetChanged();
+    }
+
+    @Override
+    public void dismiss() {
+        super.dismiss();
+        loadScope.cancel();             // cancelled rows have their tags cleared, so they are loaded again when it's reopened
     }
 
     private void initEvent() {
@@ -133,10 +156,14 @@ public class ListDirPopupWindow extends PopupWindow {
             }
 
             FolderModel model = getItem(position);      // getItem is a built-in method for ArrayAdapter
-            // Reset
-            holder.imageView.setImageResource(R.drawable.picture_no);       // in case the second screen displays pictures from first screen
 
-            ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadImage(model.getFirstImgPath(), holder.imageView);
+            // the pop-up window keeps its ListView, so reopening it rebinds rows which already show the right cover
+            if(model.getFirstImgPath() == null || !model.getFirstImgPath().equals(holder.imageView.getTag())){
+                // Reset
+                holder.imageView.setImageResource(R.drawable.picture_no);       // in case the second screen displays pictures from first screen
+
+                ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadCover(model.getFirstImgPath(), holder.imageView, coverSize, loadScope);
+            }
 
             holder.dirName.setText(model.getDirName());
             holder.dirCount.setText(model.getImgCount() + "");
@@ -0,0 +1,62 @@
+package com.peter.imagepickerlibrary.model;
+
+import android.graphics.Bitmap;
+
+import java.io.File;
+
+/**
+ * Output settings for exporting the selected images
+ * Images larger than maxDimension (on the longer side) are scaled down, smaller ones are only re-encoded
+ */
+public class ExportSpec {
+    private int maxDimension = 1920;                                    // longer side of the exported image, in pixels
+    private Bitmap.CompressFormat format = Bitmap.CompressFormat.JPEG;
+    private int quality = 85;                                           // 0 - 100, ignored by PNG
+    private File destDir;                                               // where the exported files go
+
+    public int getMaxDimension() {
+        return maxDimension;
+    }
+
+    public Bitmap.CompressFormat getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public File getDestDir() {
+        return destDir;
+    }
+
+    public void setMaxDimension(int maxDimension) {
+        this.maxDimension = maxDimension;
+    }
+
+    public void setFormat(Bitmap.CompressFormat format) {
+        this.format = format;
+    }
+
+    public void setQuality(int quality) {
+        this.quality = quality;
+    }
+
+    public void setDestDir(File destDir) {
+        this.destDir = destDir;
+    }
+
+    /**
+     * File extension matching the format, without the dot
+     * @return String
+     */
+    public String getExtension() {
+        if(format == Bitmap.CompressFormat.PNG){
+            return "png";
+        }
+        else if(format == Bitmap.CompressFormat.JPEG){
+            return "jpg";
+        }
+        return "webp";
+    }
+}
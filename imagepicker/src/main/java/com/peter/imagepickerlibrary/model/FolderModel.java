@@ -8,6 +8,7 @@ public class FolderModel {
     private String firstImgPath;
     private String dirName;
     private int imgCount;
+    private boolean timeline;       // virtual folder of all images, see Timeline, has no directory
 
     public String getDir() {
         return dir;
@@ -25,6 +26,10 @@ public class FolderModel {
         return imgCount;
     }
 
+    public boolean isTimeline() {
+        return timeline;
+    }
+
     public void setDir(String dir) {
         this.dir = dir;
 
@@ -37,12 +42,16 @@ public class FolderModel {
         this.firstImgPath = firstImgPath;
     }
 
-    // not needed, can be done while getting directory path
-//    public void setDirName(String dirName) {
-//        this.dirName = dirName;
-//    }
+    // usually done while getting directory path, only needed by virtual folders which have none
+    public void setDirName(String dirName) {
+        this.dirName = dirName;
+    }
 
     public void setImgCount(int imgCount) {
         this.imgCount = imgCount;
     }
+
+    public void setTimeline(boolean timeline) {
+        this.timeline = timeline;
+    }
 }
@@ -0,0 +1,52 @@
+package com.peter.imagepickerlibrary.model;
+
+/**
+ * One picked image with what's known about it, as the host app gets it from SelectionResult
+ */
+public class ImageInfo {
+    private String path;
+    private long id = -1;           // MediaStore's _ID, -1 if the image isn't in MediaStore
+    private long size;              // in bytes
+    private int width;              // 0 if unknown
+    private int height;
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+}
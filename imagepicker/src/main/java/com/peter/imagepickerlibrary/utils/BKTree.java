@@ -0,0 +1,106 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Burkhard-Keller tree over 64 bit hashes, using Hamming distance
+ * Finds all the hashes within a distance of a query without comparing against every single one,
+ * as the triangle inequality lets whole subtrees be skipped
+ *
+ * Not thread safe, build it on one thread and query it after
+ * @param <T> value attached to each hash, e.g. the image path
+ */
+public class BKTree<T> {
+    private Node<T> root;
+    private int size;
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    public void add(long hash, T value) {
+        size++;
+        if(root == null){
+            root = new Node<T>(hash, value);
+            return;
+        }
+
+        Node<T> node = root;
+        while(true){
+            int d = distance(node.hash, hash);
+            if(d == 0){                             // identical hash, keep both values on the same node
+                node.values.add(value);
+                return;
+            }
+            Node<T> child = node.getChild(d);
+            if(child == null){
+                node.putChild(d, new Node<T>(hash, value));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * All values whose hash is within maxDistance of hash
+     * @param hash
+     * @param maxDistance
+     * @return List, empty if nothing is close enough
+     */
+    public List<T> query(long hash, int maxDistance) {
+        List<T> result = new ArrayList<T>();
+        if(root == null){
+            return result;
+        }
+
+        List<Node<T>> stack = new ArrayList<Node<T>>();
+        stack.add(root);
+        while(!stack.isEmpty()){
+            Node<T> node = stack.remove(stack.size() - 1);
+            int d = distance(node.hash, hash);
+            if(d <= maxDistance){
+                result.addAll(node.values);
+            }
+            if(node.children == null){
+                continue;
+            }
+            // only children with |d - distance(child)| <= maxDistance can contain a match
+            for(Map.Entry<Integer, Node<T>> entry : node.children.entrySet()){
+                int childDistance = entry.getKey();
+                if(childDistance >= d - maxDistance && childDistance <= d + maxDistance){
+                    stack.add(entry.getValue());
+                }
+            }
+        }
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static class Node<T> {
+        long hash;
+        List<T> values = new ArrayList<T>(1);
+        Map<Integer, Node<T>> children;         // by distance to this node, created on first child
+
+        Node(long hash, T value) {
+            this.hash = hash;
+            values.add(value);
+        }
+
+        Node<T> getChild(int distance) {
+            return children == null ? null : children.get(distance);
+        }
+
+        void putChild(int distance, Node<T> child) {
+            if(children == null){
+                children = new HashMap<Integer, Node<T>>(4);
+            }
+            children.put(distance, child);
+        }
+    }
+}
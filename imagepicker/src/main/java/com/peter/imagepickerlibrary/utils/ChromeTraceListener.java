@@ -0,0 +1,175 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records ImageLoader's events and writes them in Chrome's trace event format,
+ * to open a scroll session in chrome://tracing or Perfetto and see where the time goes
+ *
+ * Work on a thread (file reads, decodes, cache inserts) shows as slices on that thread's row,
+ * the waits (in the task queue, for the UI thread) as async slices per request, and the rest as instant marks
+ *
+ * Events are kept in memory until save, and the ones after maxEvents are dropped
+ */
+public class ChromeTraceListener implements LoadEventListener {
+    private static final int DEFAULT_MAX_EVENTS = 200000;
+    private static final int PID = 1;
+
+    private File file;
+    private int maxEvents;
+    private long startNanos = System.nanoTime();
+    private List<Event> events = new ArrayList<Event>();
+    private Map<Long, String> threadNames = new HashMap<Long, String>();
+
+    /**
+     * @param file where save writes the trace
+     */
+    public ChromeTraceListener(File file) {
+        this(file, DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * @param file where save writes the trace
+     * @param maxEvents events kept, about 100 bytes each
+     */
+    public ChromeTraceListener(File file, int maxEvents) {
+        this.file = file;
+        this.maxEvents = maxEvents;
+    }
+
+    @Override
+    public void onEvent(long requestId, String path, Phase phase, long startNanos, long endNanos) {
+        Thread thread = Thread.currentThread();
+        synchronized (this){
+            if(events.size() >= maxEvents){
+                return;
+            }
+            events.add(new Event(requestId, path, phase, startNanos, endNanos, thread.getId()));
+            if(!threadNames.containsKey(thread.getId())){
+                threadNames.put(thread.getId(), thread.getName());
+            }
+        }
+    }
+
+    /**
+     * Forget what was recorded, to start a new session
+     */
+    public synchronized void clear() {
+        events.clear();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Write what was recorded so far, call it off the UI thread
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        List<Event> snapshot;
+        Map<Long, String> names;
+        long start;
+        synchronized (this){
+            snapshot = new ArrayList<Event>(events);
+            names = new HashMap<Long, String>(threadNames);
+            start = startNanos;
+        }
+
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            boolean first = true;
+            for(Map.Entry<Long, String> name : names.entrySet()){
+                first = separate(out, first);
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + PID + ",\"tid\":" + name.getKey()
+                        + ",\"args\":{\"name\":\"" + escape(name.getValue()) + "\"}}");
+            }
+            for(Event event : snapshot){
+                first = separate(out, first);
+                writeEvent(out, event, start);
+            }
+            out.write("\n]}\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeEvent(Writer out, Event event, long start) throws IOException {
+        long ts = (event.startNanos - start) / 1000;        // microseconds
+        long dur = (event.endNanos - event.startNanos) / 1000;
+        String args = "\"args\":{\"request\":" + event.requestId + ",\"path\":\"" + escape(event.path) + "\"}";
+        String common = "\"pid\":" + PID + ",\"tid\":" + event.threadId;
+
+        switch (event.phase){
+            case DEQUEUE:
+            case DISPLAY:
+                // crosses threads, so an async slice keyed by the request
+                String name = event.phase == Phase.DEQUEUE ? "queued" : "waiting for UI";
+                String async = "{\"name\":\"" + name + "\",\"cat\":\"wait\",\"id\":" + event.requestId + "," + common;
+                out.write(async + ",\"ph\":\"b\",\"ts\":" + ts + "," + args + "},\n");
+                out.write(async + ",\"ph\":\"e\",\"ts\":" + (ts + dur) + "}");
+                break;
+            case ENQUEUE:
+            case UI_POST:
+            case CANCEL:
+                out.write("{\"name\":\"" + event.phase + "\",\"cat\":\"load\",\"ph\":\"i\",\"s\":\"t\",\"ts\":" + ts
+                        + "," + common + "," + args + "}");
+                break;
+            default:
+                out.write("{\"name\":\"" + event.phase + "\",\"cat\":\"load\",\"ph\":\"X\",\"ts\":" + ts
+                        + ",\"dur\":" + dur + "," + common + "," + args + "}");
+                break;
+        }
+    }
+
+    private static boolean separate(Writer out, boolean first) throws IOException {
+        if(!first){
+            out.write(",\n");
+        }
+        return false;
+    }
+
+    private static String escape(String s) {
+        if(s == null){
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for(int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\'){
+                sb.append('\\').append(c);
+            }
+            else if(c < 0x20){
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class Event {
+        final long requestId;
+        final String path;
+        final Phase phase;
+        final long startNanos;
+        final long endNanos;
+        final long threadId;
+
+        Event(long requestId, String path, Phase phase, long startNanos, long endNanos, long threadId) {
+            this.requestId = requestId;
+            this.path = path;
+            this.phase = phase;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.threadId = threadId;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.IOException;
+
+/**
+ * Decodes without letting an OutOfMemoryError out
+ *
+ * Before decoding, inSampleSize is raised until the bitmap fits the per-decode pixel budget,
+ * so a wrong view size or a huge PNG can't ask for hundreds of MB at once
+ * When the allocation still fails, onOutOfMemory is run (to evict caches) and the decode is retried lower down the ladder:
+ *   1. as planned
+ *   2. RGB_565, half the memory (PNG transparency is lost, fine for thumbnails)
+ *   3. RGB_565 at twice the sample size
+ *   4. RGB_565 at four times the sample size
+ * and null if even that fails
+ */
+class DecodePolicy {
+    private static final int MAX_ATTEMPTS = 4;
+
+    interface Source {
+        /**
+         * @param options inSampleSize and inPreferredConfig are set for this attempt
+         * @param attempt 0 for the first one, a stream read by an earlier attempt has to be opened again
+         * @return bitmap, null if it can't be decoded
+         * @throws IOException
+         */
+        Bitmap decode(BitmapFactory.Options options, int attempt) throws IOException;
+    }
+
+    private long maxPixels;
+    private Runnable onOutOfMemory;
+
+    /**
+     * @param maxPixels biggest bitmap one decode may allocate, width * height
+     * @param onOutOfMemory frees what it can before a retry, may be null
+     */
+    DecodePolicy(long maxPixels, Runnable onOutOfMemory) {
+        this.maxPixels = Math.max(1, maxPixels);
+        this.onOutOfMemory = onOutOfMemory;
+    }
+
+    /**
+     * @param options outWidth and outHeight known, inSampleSize as wanted
+     * @param source
+     * @return bitmap, null if it can't be decoded or there's no memory for it
+     * @throws IOException from the source
+     */
+    Bitmap decode(BitmapFactory.Options options, Source source) throws IOException {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = fitBudget(options.outWidth, options.outHeight, Math.max(1, options.inSampleSize));
+        int inSampleSize = options.inSampleSize;
+
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++){
+            try {
+                return source.decode(options, attempt);
+            } catch (OutOfMemoryError e) {
+                if(onOutOfMemory != null){
+                    onOutOfMemory.run();
+                }
+                // next rung of the ladder
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+                if(attempt >= 1){
+                    inSampleSize *= 2;
+                    options.inSampleSize = inSampleSize;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param width
+     * @param height
+     * @param inSampleSize
+     * @return inSampleSize, doubled until the decoded size is within maxPixels
+     */
+    int fitBudget(int width, int height, int inSampleSize) {
+        if(width <= 0 || height <= 0){         // size unknown, nothing to go by
+            return inSampleSize;
+        }
+        while((long) (width / inSampleSize) * (height / inSampleSize) > maxPixels){
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+}
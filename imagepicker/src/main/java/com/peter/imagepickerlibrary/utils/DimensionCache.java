@@ -0,0 +1,173 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Width and height of images, so the bounds pass of a decode can be skipped for images seen before
+ * Filled from earlier decodes, the images MediaStore has no size for, and saved between sessions
+ *
+ * Entries are checked against the file's last modified time (in seconds, the precision MediaStore has),
+ * so an edited image is measured again
+ *
+ * Holds at most MAX_ENTRIES, the least recently used go first, so neither the map nor a save grows with the storage
+ * Saved from the least to the most recently used, so reading it back keeps that order
+ */
+public class DimensionCache {
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 8192;        // about 1 MB on disk with typical paths
+
+    private File file;
+    private Map<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DimensionCache.Entry> eldest) {     // Entry alone is Map.Entry in here
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded;
+    private boolean dirty;
+
+    /**
+     * @param file where the dimensions are saved, read the first time they are needed
+     */
+    public DimensionCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param path
+     * @param lastModified in milliseconds, as File.lastModified()
+     * @param width
+     * @param height
+     */
+    public synchronized void put(String path, long lastModified, int width, int height) {
+        if(width <= 0 || height <= 0){
+            return;
+        }
+        ensureLoaded();
+        Entry entry = entries.get(path);
+        int seconds = (int) (lastModified / 1000);
+        if(entry != null && entry.lastModified == seconds && entry.width == width && entry.height == height){
+            return;
+        }
+        entries.put(path, new Entry(seconds, width, height));
+        dirty = true;
+    }
+
+    /**
+     * @param path
+     * @param lastModified in milliseconds, as File.lastModified()
+     * @param size filled with width and height
+     * @return false if unknown, or if the file changed since
+     */
+    public synchronized boolean get(String path, long lastModified, int[] size) {
+        ensureLoaded();
+        Entry entry = entries.get(path);
+        if(entry == null || entry.lastModified != (int) (lastModified / 1000)){
+            return false;
+        }
+        size[0] = entry.width;
+        size[1] = entry.height;
+        return true;
+    }
+
+    /**
+     * Write the cache if anything was added since the last save, call it off the UI thread
+     */
+    public void save() {
+        Map<String, Entry> snapshot;
+        synchronized (this){
+            if(!dirty){
+                return;
+            }
+            snapshot = new LinkedHashMap<String, Entry>(entries);       // same order
+            dirty = false;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for(Map.Entry<String, Entry> e : snapshot.entrySet()){
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().lastModified);
+                out.writeInt(e.getValue().width);
+                out.writeInt(e.getValue().height);
+            }
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file)){
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            if(out != null){
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void ensureLoaded() {
+        if(loaded){
+            return;
+        }
+        loaded = true;
+        if(!file.exists()){
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != VERSION){
+                return;
+            }
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                String path = in.readUTF();
+                entries.put(path, new Entry(in.readInt(), in.readInt(), in.readInt()));
+            }
+        } catch (EOFException e) {
+            // cut off, keep what was read
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final int lastModified;     // seconds
+        final int width;
+        final int height;
+
+        Entry(int lastModified, int width, int height) {
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
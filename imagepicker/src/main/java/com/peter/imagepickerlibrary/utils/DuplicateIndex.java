@@ -0,0 +1,558 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.peter.imagepickerlibrary.model.FolderModel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Perceptual hash index to find duplicates and near duplicates (burst shots, re-saved copies)
+ *
+ * A 64 bit difference hash (dHash) is computed for every image from a tiny thumbnail,
+ * the grid's own from the ImageLoader's memory cache or thumbnail packs if it has one, otherwise a heavily sampled decode
+ * Hashes are appended to a journal file keyed by path + last modified time as soon as they are computed,
+ * so indexing is incremental (unchanged files are never hashed again) and resumes where it stopped if the process dies
+ * Each folder gets its own BKTree, so near duplicate queries don't compare against every image
+ */
+public class DuplicateIndex {
+    public static final int DEFAULT_MAX_DISTANCE = 8;   // out of 64 bits, still catches re-compressed and slightly cropped copies
+
+    private static final int HASH_WIDTH = 9;            // 9 x 8 pixels give 8 x 8 horizontal differences
+    private static final int HASH_HEIGHT = 8;
+    private static final int THUMBNAIL_SIZE = 64;       // size of the decode when there is no cached thumbnail
+
+    public interface OnIndexListener {
+        /**
+         * Called on the main thread every time a folder is done
+         * @param dir
+         * @param groups see findDuplicateGroups
+         */
+        void onFolderIndexed(String dir, Map<String, Integer> groups);
+    }
+
+    public interface OnGroupsListener {
+        /**
+         * Called on the main thread, not once the index is cancelled
+         * @param dir
+         * @param groups see findDuplicateGroups
+         */
+        void onGroupsFound(String dir, Map<String, Integer> groups);
+    }
+
+    private File journalFile;
+    private DataOutputStream journal;
+    private ImageLoader imageLoader;                    // can be null, thumbnails are then always decoded
+    private int thumbnailBucket;
+
+    private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();            // full path -> hash
+    private Map<String, BKTree<String>> folderTrees = new ConcurrentHashMap<String, BKTree<String>>();
+
+    private ExecutorService threadPool;
+    private ExecutorService queryThread;                // findDuplicateGroups for the UI, not queued behind the hashing
+    private IndexRun currentRun;
+    private volatile boolean closed;                    // see cancel
+    private Handler UIHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param journalFile where the hashes are kept between sessions, e.g. new File(context.getCacheDir(), "phash.idx")
+     */
+    public DuplicateIndex(File journalFile) {
+        this(journalFile, null, 0);
+    }
+
+    /**
+     * @param journalFile where the hashes are kept between sessions, e.g. new File(context.getCacheDir(), "phash.idx")
+     * @param imageLoader the grid's loader, its thumbnails are hashed instead of decoding the images again, can be null
+     * @param thumbnailBucket size bucket of the grid's thumbnails, ThumbnailPackStore.getSizeBucket of the cell size
+     */
+    public DuplicateIndex(File journalFile, ImageLoader imageLoader, int thumbnailBucket) {
+        this.journalFile = journalFile;
+        this.imageLoader = imageLoader;
+        this.thumbnailBucket = thumbnailBucket;
+        ThreadFactory backgroundThreads = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(){
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);    // never compete with the grid
+                        r.run();
+                    }
+                };
+            }
+        };
+        threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), backgroundThreads);
+        queryThread = Executors.newSingleThreadExecutor(backgroundThreads);
+    }
+
+    /**
+     * Index the folders in the background, biggest work is skipped for images already in the journal
+     * Calling it again cancels the previous run
+     * @param folders
+     * @param listener can be null
+     */
+    public synchronized void indexFolders(List<FolderModel> folders, OnIndexListener listener) {
+        if(closed){
+            return;
+        }
+        stopRun();
+        currentRun = new IndexRun(new ArrayList<FolderModel>(folders), listener);
+        currentRun.start();
+    }
+
+    /**
+     * Stop indexing after the images being hashed now, what's done so far is kept
+     * The threads are shut down and the journal is closed, the index can't be used again, call it in onDestroy
+     */
+    public synchronized void cancel() {
+        stopRun();
+        if(closed){
+            return;
+        }
+        closed = true;
+        // hashes still queued never run, their futures are cancelled or invokeAll in the run would wait for them forever
+        for(Runnable task : threadPool.shutdownNow()){
+            if(task instanceof Future){
+                ((Future<?>) task).cancel(false);
+            }
+        }
+        queryThread.shutdownNow();
+        closeQuietly(journal);
+        journal = null;
+    }
+
+    private synchronized void stopRun() {
+        if(currentRun != null){
+            currentRun.cancelled = true;
+            currentRun = null;
+        }
+    }
+
+    /**
+     * findDuplicateGroups in the background, it lists the folder, which is too slow for the UI thread
+     * @param dir
+     * @param maxDistance
+     * @param listener
+     */
+    public synchronized void findDuplicateGroups(final String dir, final int maxDistance, final OnGroupsListener listener) {
+        if(closed){
+            return;
+        }
+        queryThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Integer> groups = findDuplicateGroups(dir, maxDistance);
+                UIHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(!closed){
+                            listener.onGroupsFound(dir, groups);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Group the near duplicates of an indexed folder, off the UI thread, it lists the folder
+     * Images that are not close to any other image are left out
+     * @param dir
+     * @param maxDistance
+     * @return Map from full path to group number (starting at 1), empty if the folder isn't indexed yet
+     */
+    public Map<String, Integer> findDuplicateGroups(String dir, int maxDistance) {
+        Map<String, Integer> groups = new HashMap<String, Integer>();
+        BKTree<String> tree = folderTrees.get(dir);
+        if(tree == null){
+            return groups;
+        }
+
+        int groupCount = 0;
+        List<String> paths = listImages(dir);
+        for(String path : paths){
+            Entry entry = entries.get(path);
+            if(entry == null || groups.containsKey(path)){
+                continue;
+            }
+
+            // flood fill, so chains of similar shots end up in one group
+            List<String> pending = new ArrayList<String>();
+            pending.add(path);
+            int group = groupCount + 1;
+            int members = 0;
+            while(!pending.isEmpty()){
+                String current = pending.remove(pending.size() - 1);
+                Entry currentEntry = entries.get(current);
+                if(currentEntry == null){
+                    continue;
+                }
+                for(String similar : tree.query(currentEntry.hash, maxDistance)){
+                    if(!groups.containsKey(similar)){
+                        groups.put(similar, group);
+                        pending.add(similar);
+                        members++;
+                    }
+                }
+            }
+
+            if(members < 2){            // only itself
+                groups.remove(path);
+            }
+            else {
+                groupCount = group;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Images of the same folder within maxDistance of the given one, including itself
+     * @param path
+     * @param maxDistance
+     * @return List, empty if not indexed yet
+     */
+    public List<String> findSimilar(String path, int maxDistance) {
+        Entry entry = entries.get(path);
+        BKTree<String> tree = folderTrees.get(new File(path).getParent());
+        if(entry == null || tree == null){
+            return new ArrayList<String>();
+        }
+        return tree.query(entry.hash, maxDistance);
+    }
+
+    /**
+     * Hash every image of the folder that isn't in the journal (or changed since), then build its tree
+     * @param dir
+     * @param run stops hashing once cancelled
+     */
+    private void indexFolder(String dir, final IndexRun run) {
+        List<String> paths = listImages(dir);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for(final String path : paths){
+            final long lastModified = new File(path).lastModified();
+            Entry entry = entries.get(path);
+            if(entry != null && entry.lastModified == lastModified){
+                continue;
+            }
+
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if(run.cancelled){
+                        return null;
+                    }
+                    Bitmap cached = imageLoader != null ? imageLoader.getBitmapFromLruCache(path) : null;
+                    Bitmap thumbnail = cached;
+                    if(thumbnail == null){
+                        thumbnail = decodePackedThumbnail(path);
+                    }
+                    if(thumbnail == null){
+                        thumbnail = decodeThumbnail(path);
+                    }
+                    if(thumbnail != null){
+                        Entry entry = new Entry(lastModified, computeHash(thumbnail));
+                        entries.put(path, entry);
+                        appendToJournal(path, entry);
+                        if(thumbnail != cached){
+                            thumbnail.recycle();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        try {
+            threadPool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return;
+        } catch (RejectedExecutionException e) {
+            return;                     // shut down by cancel
+        }
+
+        if(run.cancelled){
+            return;
+        }
+        BKTree<String> tree = new BKTree<String>();
+        for(String path : paths){
+            Entry entry = entries.get(path);
+            if(entry != null){
+                tree.add(entry.hash, path);
+            }
+        }
+        folderTrees.put(dir, tree);
+    }
+
+    private List<String> listImages(String dir) {
+        List<String> paths = new ArrayList<String>();
+        String[] names = new File(dir).list(new ImageFileFilter());
+        if(names != null){
+            for(String name : names){
+                paths.add(dir + "/" + name);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * The grid thumbnail from the loader's packs, far less to decode than the image
+     * @param path
+     * @return Bitmap, null if the loader has no disk cache or no thumbnail of the image (or an outdated one)
+     */
+    private Bitmap decodePackedThumbnail(String path) {
+        ThumbnailPackStore store = imageLoader != null ? imageLoader.getPackStore() : null;
+        if(store == null || thumbnailBucket <= 0){
+            return null;
+        }
+        ByteBuffer data = store.getEncoded(path, thumbnailBucket);
+        if(data == null){
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = Math.max(1, thumbnailBucket / (THUMBNAIL_SIZE * 2));     // the bucket is the longer side, rounded up
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, options);
+    }
+
+    /**
+     * Used when ImageLoader doesn't have the grid thumbnail, the hash only needs 9 x 8 pixels anyway
+     * @param path
+     * @return Bitmap, null if it can't be decoded
+     */
+    private Bitmap decodeThumbnail(String path) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if(options.outWidth <= 0 || options.outHeight <= 0){
+            return null;
+        }
+        options.inSampleSize = Math.max(1, Math.min(options.outWidth, options.outHeight) / THUMBNAIL_SIZE);
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * dHash: shrink to 9 x 8 grey pixels, one bit per pair of horizontal neighbours, set if the left one is brighter
+     * @param bitmap
+     * @return hash
+     */
+    static long computeHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, HASH_WIDTH, HASH_HEIGHT, true);
+        int[] pixels = new int[HASH_WIDTH * HASH_HEIGHT];
+        small.getPixels(pixels, 0, HASH_WIDTH, 0, 0, HASH_WIDTH, HASH_HEIGHT);
+        if(small != bitmap){
+            small.recycle();
+        }
+
+        long hash = 0;
+        for(int y = 0; y < HASH_HEIGHT; y++){
+            for(int x = 0; x < HASH_WIDTH - 1; x++){
+                int left = luminance(pixels[y * HASH_WIDTH + x]);
+                int right = luminance(pixels[y * HASH_WIDTH + x + 1]);
+                hash <<= 1;
+                if(left > right){
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static int luminance(int color) {
+        int r = (color >> 16) & 0xFF;
+        int g = (color >> 8) & 0xFF;
+        int b = color & 0xFF;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    /**
+     * Read the journal, later records win, a record cut off by a crash is ignored
+     * Entries of deleted files are dropped and the journal is rewritten without them
+     */
+    private void loadJournal() {
+        if(!journalFile.exists()){
+            return;
+        }
+
+        DataInputStream in = null;
+        int records = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            while(true){
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long hash = in.readLong();
+                entries.put(path, new Entry(lastModified, hash));
+                records++;
+            }
+        } catch (EOFException e) {
+            // end of journal
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(in);
+        }
+
+        for(String path : new ArrayList<String>(entries.keySet())){
+            if(!new File(path).exists()){
+                entries.remove(path);
+            }
+        }
+        if(records > entries.size()){           // stale or overwritten records, compact
+            rewriteJournal();
+        }
+    }
+
+    private void rewriteJournal() {
+        File tmp = new File(journalFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            for(Map.Entry<String, Entry> entry : entries.entrySet()){
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+            if(!tmp.renameTo(journalFile)){
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private synchronized void openJournal() {
+        try {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        } catch (IOException e) {
+            e.printStackTrace();            // index still works for this session, it's just not persisted
+        }
+    }
+
+    private synchronized void appendToJournal(String path, Entry entry) {
+        if(journal == null){
+            return;
+        }
+        try {
+            writeRecord(journal, path, entry);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void flushJournal() {
+        if(journal == null){
+            return;
+        }
+        try {
+            journal.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String path, Entry entry) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(entry.lastModified);
+        out.writeLong(entry.hash);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if(closeable != null){
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private class IndexRun extends Thread {
+        volatile boolean cancelled;
+        private List<FolderModel> folders;
+        private OnIndexListener listener;
+
+        IndexRun(List<FolderModel> folders, OnIndexListener listener) {
+            this.folders = folders;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            synchronized (DuplicateIndex.this){
+                if(cancelled){                  // cancelled before it got here, the journal may be closed for good
+                    return;
+                }
+                if(journal == null){
+                    loadJournal();
+                    openJournal();
+                }
+            }
+
+            for(FolderModel folder : folders){
+                if(cancelled){
+                    break;
+                }
+                if(folder.isTimeline()){        // its images are indexed with their own folders
+                    continue;
+                }
+                final String dir = folder.getDir();
+                indexFolder(dir, this);
+                flushJournal();             // a folder at a time, so a killed process loses little
+
+                if(listener != null && !cancelled){
+                    final Map<String, Integer> groups = findDuplicateGroups(dir, DEFAULT_MAX_DISTANCE);
+                    UIHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onFolderIndexed(dir, groups);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final long hash;
+
+        Entry(long lastModified, long hash) {
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.os.Process;
+
+import com.peter.imagepickerlibrary.model.FolderModel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds image folders by walking the file system, for images MediaStore doesn't know about yet
+ * (just copied over USB, on SD cards, not scanned yet)
+ *
+ * Every directory is listed by its own task on a thread pool, and each subdirectory found is submitted as a new task,
+ * so the walk spreads over all the threads instead of going down one branch at a time
+ * Directories with a .nomedia file are skipped with everything under them, like MediaStore does, and so are hidden ones
+ * Produces the same FolderModel as the MediaStore scan, with the folder's file names;
+ * use merge to put them together with what MediaStore has of the folder
+ */
+public class FileSystemScanner {
+    private static final String NO_MEDIA = ".nomedia";
+    private static final int DEFAULT_MAX_DEPTH = 8;
+
+    public interface OnScanListener {
+        /**
+         * Called on a scanner thread as soon as a directory with images has been listed
+         * @param folderModel
+         * @param imageNames file names of its images, in listing order
+         */
+        void onFolderFound(FolderModel folderModel, List<String> imageNames);
+
+        /**
+         * Called on a scanner thread once every directory is done, or after cancel()
+         */
+        void onScanFinished();
+    }
+
+    private List<File> roots;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+    private boolean checkMagicBytes;
+
+    private ExecutorService threadPool;
+    private AtomicInteger pendingDirs = new AtomicInteger(0);
+    private volatile boolean cancelled;
+    private OnScanListener listener;
+
+    /**
+     * @param roots where to start, e.g. Environment.getExternalStorageDirectory() and the SD card
+     */
+    public FileSystemScanner(List<File> roots) {
+        this.roots = new ArrayList<File>(roots);
+    }
+
+    /**
+     * @param maxDepth levels of subdirectories under a root to go into, 0 lists the roots only
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Also accept files without a known extension if their first bytes are a JPEG or PNG signature
+     * Costs an open and a read per such file
+     * @param checkMagicBytes
+     */
+    public void setCheckMagicBytes(boolean checkMagicBytes) {
+        this.checkMagicBytes = checkMagicBytes;
+    }
+
+    /**
+     * Start walking, returns immediately, a scanner can only be used once
+     * @param listener
+     */
+    public void scan(OnScanListener listener) {
+        this.listener = listener;
+        threadPool = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(){
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+
+        if(roots.isEmpty()){
+            finish();
+            return;
+        }
+
+        // held while the roots are submitted, so a quick first root can't finish the scan before the next one is in
+        pendingDirs.incrementAndGet();
+
+        // the roots may overlap, e.g. /sdcard and /storage/emulated/0
+        Set<String> uniqueRoots = new HashSet<String>();
+        for(File root : roots){
+            if(uniqueRoots.add(canonicalPath(root))){
+                submit(root, 0);
+            }
+        }
+
+        if(pendingDirs.decrementAndGet() == 0){
+            finish();
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Put the images of a folder found on disk together with what MediaStore has of it, image by image:
+     * the ones it hasn't scanned yet are added, the ones deleted since are dropped
+     * MediaStore's own list is kept when it has exactly the images on disk, so its names stay in the index
+     * @param index MediaStore's images, null if there's none
+     * @param dir full path of the folder
+     * @param imageNames file names of the images in it, from onFolderFound or a listing with ImageFileFilter
+     * @return file names of the folder's images, sorted
+     */
+    public static List<String> merge(MediaIndex index, String dir, List<String> imageNames) {
+        int folder = index != null ? index.indexOfFolder(dir) : -1;
+        if(folder >= 0 && imageNames.size() == index.getFolderImageCount(folder)){
+            boolean allIndexed = true;
+            for(String name : imageNames){
+                if(index.indexOfImage(folder, name) < 0){
+                    allIndexed = false;
+                    break;
+                }
+            }
+            if(allIndexed){
+                return index.getFileNames(folder);          // names are unique, as many and all indexed is the same set
+            }
+        }
+        List<String> merged = new ArrayList<String>(imageNames);
+        Collections.sort(merged);
+        return merged;
+    }
+
+    private void submit(final File dir, final int depth) {
+        pendingDirs.incrementAndGet();
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if(!cancelled){
+                        scanDir(dir, depth);
+                    }
+                } finally {
+                    if(pendingDirs.decrementAndGet() == 0){         // last one out, nothing else can be submitted
+                        finish();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * List one directory, count its images and submit its subdirectories
+     * @param dir
+     * @param depth
+     */
+    private void scanDir(File dir, int depth) {
+        String[] names = dir.list();
+        if(names == null){
+            return;
+        }
+        for(String name : names){
+            if(NO_MEDIA.equals(name)){
+                return;
+            }
+        }
+
+        List<String> images = new ArrayList<String>();
+        for(String name : names){
+            if(ImageFileFilter.isImage(name)){          // trust the extension, no need to stat the file
+                images.add(name);
+                continue;
+            }
+
+            if(name.charAt(0) == '.'){
+                continue;
+            }
+            File child = new File(dir, name);
+            if(child.isDirectory()){
+                if(depth < maxDepth){
+                    submit(child, depth + 1);
+                }
+            }
+            else if(checkMagicBytes && name.indexOf('.') < 0 && hasImageSignature(child)){
+                images.add(name);
+            }
+        }
+
+        if(!images.isEmpty() && !cancelled){
+            FolderModel folderModel = new FolderModel();
+            folderModel.setDir(dir.getAbsolutePath());
+            folderModel.setFirstImgPath(dir.getAbsolutePath() + "/" + images.get(0));
+            folderModel.setImgCount(images.size());
+            listener.onFolderFound(folderModel, images);
+        }
+    }
+
+    /**
+     * JPEG starts with FF D8 FF, PNG with 89 'P' 'N' 'G'
+     * @param file
+     * @return boolean
+     */
+    private static boolean hasImageSignature(File file) {
+        byte[] header = new byte[4];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if(in.read(header) < 4){
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        boolean jpeg = (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF;
+        boolean png = (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G';
+        return jpeg || png;
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private void finish() {
+        threadPool.shutdown();
+        listener.onScanFinished();
+    }
+}
@@ -10,11 +10,14 @@ import android.view.WindowManager;
 import android.widget.BaseAdapter;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.TextView;
 
 import com.peter.imagepickerlibrary.R;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ImageAdapter extends BaseAdapter {
@@ -24,6 +27,8 @@ public class ImageAdapter extends BaseAdapter {
 
     private String dirPath;
     private List<String> imageList;
+    private Map<String, Integer> duplicateGroups = new HashMap<String, Integer>();     // full path -> group number, from DuplicateIndex
+    private LoadScope loadScope;        // null if the loads aren't cancelled with the screen
     private LayoutInflater inflater;
 
     private int screenWidth;
@@ -39,6 +44,56 @@ public class ImageAdapter extends BaseAdapter {
          screenWidth = windowMetrics.widthPixels;
      }
 
+    /**
+     * Full paths of the images picked so far, in all folders
+     * A copy, so it can be handed to ImageExporter while the user keeps picking
+     * @return Set
+     */
+    public static Set<String> getSelectedImages() {
+        return new HashSet<String>(selectedImage);
+    }
+
+    /**
+     * For the other grids sharing the selection, e.g. TimelineAdapter
+     * @param filePath
+     * @return boolean
+     */
+    static boolean isSelected(String filePath) {
+        return selectedImage.contains(filePath);
+    }
+
+    /**
+     * @param filePath
+     * @return true if it's now selected
+     */
+    static boolean toggleSelected(String filePath) {
+        if(selectedImage.remove(filePath)){
+            return false;
+        }
+        selectedImage.add(filePath);
+        return true;
+    }
+
+    /**
+     * Mark near duplicates in the grid, images in the same group get the same number
+     * @param duplicateGroups see DuplicateIndex.findDuplicateGroups
+     */
+    public void setDuplicateGroups(Map<String, Integer> duplicateGroups) {
+        if(this.duplicateGroups.isEmpty() && duplicateGroups.isEmpty()){
+            return;                 // nothing to show or hide, don't reload the visible images
+        }
+        this.duplicateGroups = duplicateGroups;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Load the images in a scope, cancelled when the screen goes away
+     * @param loadScope
+     */
+    public void setLoadScope(LoadScope loadScope) {
+        this.loadScope = loadScope;
+    }
+
     @Override
     public int getCount() {
             return imageList.size();
@@ -69,6 +124,7 @@ public class ImageAdapter extends BaseAdapter {
             viewHolder = new ViewHolder();
             viewHolder.imgView = (ImageView) convertView.findViewById(R.id.item_image);
             viewHolder.imgButton = (ImageButton) convertView.findViewById(R.id.item_select);
+            viewHolder.duplicateTag = (TextView) convertView.findViewById(R.id.item_duplicate);
 
             convertView.setTag(viewHolder);
         }
@@ -88,10 +144,19 @@ public class ImageAdapter extends BaseAdapter {
             viewHolder.imgView.setColorFilter(Color.parseColor("#77000000"));
         }
 
+        Integer group = duplicateGroups.get(dirPath + "/" + imageList.get(position));
+        if(group != null){
+            viewHolder.duplicateTag.setText(convertView.getContext().getString(R.string.duplicate_group, group));
+            viewHolder.duplicateTag.setVisibility(View.VISIBLE);
+        }
+        else {
+            viewHolder.duplicateTag.setVisibility(View.GONE);
+        }
+
         // will have to change this if number of columns change
         viewHolder.imgView.setMaxWidth(screenWidth / 3);
 
-        ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadImage(dirPath + "/" + imageList.get(position), viewHolder.imgView);
+        ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadImage(dirPath + "/" + imageList.get(position), viewHolder.imgView, loadScope);
         // after loading this picture, ImageLoader will set ImageView's bitmap to the picture
         // one sentence finishes the loading
 
@@ -126,5 +191,6 @@ public class ImageAdapter extends BaseAdapter {
     {
         ImageView imgView;
         ImageButton imgButton;
+        TextView duplicateTag;
     }
 }
\ No newline at end of file
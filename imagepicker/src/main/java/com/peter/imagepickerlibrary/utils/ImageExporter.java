@@ -0,0 +1,369 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.peter.imagepickerlibrary.model.ExportSpec;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Export selected images: decode, scale down and re-encode them into a destination directory
+ *
+ * Images are processed in parallel, one worker per core
+ * The number of bitmaps in memory at once is capped by a memory budget rather than by a count,
+ * so a few huge photos can't push the workers into OOM while small ones still go through in parallel
+ * If memory still runs out, the image is decoded smaller or as RGB_565 (see DecodePolicy), or skipped, and the export goes on
+ * All callbacks are delivered on the main thread
+ */
+public class ImageExporter {
+    private static final int BUDGET_UNIT = 1024;        // budget semaphore counts KBs
+
+    public interface OnExportListener {
+        /**
+         * Called every time an image is done, successfully or not
+         * @param sourcePath
+         * @param outputFile null if the image couldn't be exported
+         * @param doneCount images finished so far, including this one
+         * @param totalCount
+         */
+        void onProgress(String sourcePath, File outputFile, int doneCount, int totalCount);
+
+        /**
+         * Called once after the last image, or after cancel() once the running images are done
+         * @param exportedFiles all the files written, in the order they were finished
+         * @param cancelled
+         */
+        void onFinished(List<File> exportedFiles, boolean cancelled);
+    }
+
+    private ExecutorService threadPool;
+    private Semaphore memoryBudget;                 // in BUDGET_UNITs, acquired before decoding and released after writing
+    private int memoryBudgetUnits;
+    private DecodePolicy decodePolicy;
+    private Handler UIHandler = new Handler(Looper.getMainLooper());
+
+    public ImageExporter() {
+        this(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * @param threadCount number of images processed at the same time
+     * @param memoryBudgetBytes upper bound of the memory taken by decoded bitmaps at the same time
+     */
+    public ImageExporter(int threadCount, long memoryBudgetBytes) {
+        threadPool = Executors.newFixedThreadPool(Math.max(1, threadCount));
+        memoryBudgetUnits = (int) Math.max(1, memoryBudgetBytes / BUDGET_UNIT);
+        memoryBudget = new Semaphore(memoryBudgetUnits, true);     // fair, or a huge image could wait forever behind a stream of small ones
+        // the sampled bitmap may take half the budget, the scaled copy needs the rest
+        decodePolicy = new DecodePolicy(memoryBudgetBytes / 2 / 4, new Runnable() {
+            @Override
+            public void run() {
+                ImageLoader.evictMemoryCaches();
+            }
+        });
+    }
+
+    /**
+     * Start exporting, returns immediately
+     * @param paths usually ImageAdapter.getSelectedImages()
+     * @param spec its destDir has to be set, without one (or if it can't be created) every image is reported as failed
+     * @param listener can be null
+     * @return ExportTask to cancel the export with
+     */
+    public ExportTask export(Collection<String> paths, final ExportSpec spec, final OnExportListener listener) {
+        final ExportTask task = new ExportTask(paths.size(), listener);
+
+        if(paths.isEmpty()){
+            task.finish();
+            return task;
+        }
+
+        File destDir = spec.getDestDir();
+        if(destDir == null || (!destDir.isDirectory() && !destDir.mkdirs())){
+            for(String path : paths){
+                task.onImageDone(path, null);       // nowhere to write, onFinished comes with no files
+            }
+            return task;
+        }
+
+        for(final String path : paths){
+            threadPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File outputFile = null;
+                    try {
+                        if(!task.isCancelled()){
+                            outputFile = exportImage(path, spec, task);
+                        }
+                    } finally {
+                        task.onImageDone(path, outputFile);         // counted whatever happened, or onFinished never comes
+                    }
+                }
+            });
+        }
+
+        return task;
+    }
+
+    /**
+     * Stop the thread pool, ongoing exports still finish
+     */
+    public void shutdown() {
+        threadPool.shutdown();
+    }
+
+    /**
+     * Decode, scale and write one image
+     * @param path
+     * @param spec
+     * @param task
+     * @return the written file, null if failed or cancelled
+     */
+    private File exportImage(final String path, ExportSpec spec, ExportTask task) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if(options.outWidth <= 0 || options.outHeight <= 0){        // not an image, or the file is gone
+            return null;
+        }
+
+        options.inSampleSize = decodePolicy.fitBudget(options.outWidth, options.outHeight,
+                calculateInSampleSize(options.outWidth, options.outHeight, spec.getMaxDimension()));
+        options.inJustDecodeBounds = false;
+
+        // reserve memory for both the sampled bitmap and the scaled one before decoding
+        int units = estimateUnits(options.outWidth / options.inSampleSize, options.outHeight / options.inSampleSize, spec.getMaxDimension());
+        memoryBudget.acquireUninterruptibly(units);
+        Bitmap sampled = null;
+        Bitmap scaled = null;
+        try {
+            if(task.isCancelled()){
+                return null;
+            }
+
+            sampled = decodePolicy.decode(options, new DecodePolicy.Source() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options options, int attempt) {
+                    return BitmapFactory.decodeFile(path, options);
+                }
+            });
+            if(sampled == null){
+                return null;
+            }
+            try {
+                scaled = scaleDown(sampled, spec.getMaxDimension());
+            } catch (OutOfMemoryError e) {
+                ImageLoader.evictMemoryCaches();
+                return null;
+            }
+
+            File outputFile = task.reserveOutputFile(spec.getDestDir(), path, spec.getExtension());
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(outputFile));
+                if(!scaled.compress(spec.getFormat(), spec.getQuality(), out)){
+                    outputFile.delete();
+                    return null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                outputFile.delete();
+                return null;
+            } finally {
+                closeQuietly(out);
+            }
+            return outputFile;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(scaled != null && scaled != sampled){
+                scaled.recycle();
+            }
+            if(sampled != null){
+                sampled.recycle();
+            }
+            memoryBudget.release(units);
+        }
+    }
+
+    /**
+     * Biggest power of 2 which still keeps the longer side at least maxDimension
+     * The rest is done by scaleDown, so the quality isn't lost to rounding
+     * @param width
+     * @param height
+     * @param maxDimension
+     * @return inSampleSize
+     */
+    private int calculateInSampleSize(int width, int height, int maxDimension) {
+        int longer = Math.max(width, height);
+        int inSampleSize = 1;
+        while(longer / (inSampleSize * 2) >= maxDimension){
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * @param bitmap
+     * @param maxDimension
+     * @return bitmap itself if it's already small enough
+     */
+    private Bitmap scaleDown(Bitmap bitmap, int maxDimension) {
+        int longer = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if(longer <= maxDimension){
+            return bitmap;
+        }
+        float ratio = maxDimension * 1.0f / longer;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * ratio));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * ratio));
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    /**
+     * ARGB_8888 size of the sampled bitmap plus the scaled copy, clamped to the whole budget so a huge image still runs (alone)
+     * @param sampledWidth
+     * @param sampledHeight
+     * @param maxDimension
+     * @return units of the memory budget
+     */
+    private int estimateUnits(int sampledWidth, int sampledHeight, int maxDimension) {
+        long sampledBytes = (long) sampledWidth * sampledHeight * 4;
+        long longer = Math.max(sampledWidth, sampledHeight);
+        long scaledBytes = longer > maxDimension ? sampledBytes * maxDimension / longer * maxDimension / longer : 0;
+        long units = (sampledBytes + scaledBytes) / BUDGET_UNIT + 1;
+        return (int) Math.min(units, memoryBudgetUnits);
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if(out != null){
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Handle of a running export
+     */
+    public class ExportTask {
+        private final int totalCount;
+        private final OnExportListener listener;
+        private final AtomicInteger doneCount = new AtomicInteger(0);
+        private final List<File> exportedFiles = new ArrayList<File>();
+        private final Set<String> reservedNames = new HashSet<String>();    // names taken by images still being written
+        private volatile boolean cancelled;
+
+        private ExportTask(int totalCount, OnExportListener listener) {
+            this.totalCount = totalCount;
+            this.listener = listener;
+        }
+
+        /**
+         * Images not started yet are skipped, the ones being decoded are still finished
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public int getTotalCount() {
+            return totalCount;
+        }
+
+        public int getDoneCount() {
+            return doneCount.get();
+        }
+
+        /**
+         * Same name as the source with the new extension, numbered if the name is taken
+         * @param destDir
+         * @param sourcePath
+         * @param extension
+         * @return File
+         */
+        private synchronized File reserveOutputFile(File destDir, String sourcePath, String extension) {
+            String name = new File(sourcePath).getName();
+            int dot = name.lastIndexOf('.');
+            if(dot > 0){
+                name = name.substring(0, dot);
+            }
+
+            String fileName = name + "." + extension;
+            int index = 1;
+            while(reservedNames.contains(fileName) || new File(destDir, fileName).exists()){
+                fileName = name + "_" + index + "." + extension;
+                index++;
+            }
+            reservedNames.add(fileName);
+            return new File(destDir, fileName);
+        }
+
+        /**
+         * Counted and posted under one lock, so the main thread gets the progress in order and onFinished last:
+         * a worker finishing the last image can't post before another one has posted its progress
+         * @param path
+         * @param outputFile null if the image couldn't be exported
+         */
+        private void onImageDone(final String path, final File outputFile) {
+            synchronized (exportedFiles){
+                if(outputFile != null){
+                    exportedFiles.add(outputFile);
+                }
+
+                final int done = doneCount.incrementAndGet();
+                if(listener == null){
+                    return;
+                }
+                if(outputFile != null || !cancelled){        // skipped images after cancel() aren't reported
+                    UIHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onProgress(path, outputFile, done, totalCount);
+                        }
+                    });
+                }
+
+                if(done == totalCount){
+                    finish();
+                }
+            }
+        }
+
+        private void finish() {
+            if(listener == null){
+                return;
+            }
+            synchronized (exportedFiles){
+                final List<File> files = new ArrayList<File>(exportedFiles);
+                UIHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFinished(files, cancelled);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+/**
+ * Accepts the image files the picker can show (jpg, jpeg, png)
+ * Compares the extensions ignoring case in place, instead of lowercasing a copy of every file name
+ */
+public class ImageFileFilter implements FilenameFilter {
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png"};
+
+    @Override
+    public boolean accept(File dir, String filename) {
+        return isImage(filename);
+    }
+
+    public static boolean isImage(String filename) {
+        for(String extension : EXTENSIONS){
+            if(endsWithIgnoreCase(filename, extension)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean endsWithIgnoreCase(String s, String suffix) {
+        int offset = s.length() - suffix.length();
+        return offset >= 0 && s.regionMatches(true, offset, suffix, 0, suffix.length());
+    }
+}
@@ -0,0 +1,283 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.util.DisplayMetrics;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.peter.imagepickerlibrary.R;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The images of a folder in a RecyclerView grid, ImageAdapter for RecyclerView
+ * Shares the selection with ImageAdapter
+ *
+ * One adapter for all the folders, setImages swaps the contents:
+ *   ids are stable (from the path), so a cell keeps its holder, and its bitmap, as long as it shows the same image
+ *   a new listing of the same folder is diffed, only the inserted and removed cells move
+ *   a cell is bound again without loading if its ImageView already shows (or is loading) the image
+ * Selection and duplicate marks are rebound with payloads, the images are not touched
+ *
+ * The view pool is the adapter's own, prefetchViews fills it before the first layout
+ */
+public class ImageGridAdapter extends RecyclerView.Adapter<ImageGridAdapter.ViewHolder> {
+    private static final int VIEW_TYPE_IMAGE = 0;
+    private static final Object PAYLOAD_SELECTION = new Object();
+    private static final Object PAYLOAD_DUPLICATES = new Object();
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private String dirPath;
+    private List<String> imageList = new ArrayList<String>();
+    private Map<String, Integer> duplicateGroups = new HashMap<String, Integer>();     // full path -> group number, from DuplicateIndex
+    private LoadScope loadScope;        // null if the loads aren't cancelled with the screen
+    private LayoutInflater inflater;
+    private RecyclerView.RecycledViewPool viewPool = new RecyclerView.RecycledViewPool();
+
+    private int screenWidth;
+
+    public ImageGridAdapter(Context context) {
+        this.inflater = LayoutInflater.from(context);
+
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics windowMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getMetrics(windowMetrics);
+        screenWidth = windowMetrics.widthPixels;
+
+        setHasStableIds(true);
+    }
+
+    /**
+     * Load the images in a scope, cancelled when the screen goes away
+     * @param loadScope
+     */
+    public void setLoadScope(LoadScope loadScope) {
+        this.loadScope = loadScope;
+    }
+
+    /**
+     * Show the images of a folder
+     * The same folder again is diffed with what's shown, another folder replaces it
+     * @param dirPath
+     * @param imageList file names in the folder
+     */
+    public void setImages(String dirPath, List<String> imageList) {
+        if(dirPath.equals(this.dirPath)){
+            // no moves: listings come in the same order, and without them the diff stays cheap when little has changed
+            DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new NameDiff(this.imageList, imageList), false);
+            this.imageList = imageList;
+            diff.dispatchUpdatesTo(this);
+        }
+        else {
+            // no path in common, a diff would only find that out the slow way
+            this.dirPath = dirPath;
+            this.imageList = imageList;
+            this.duplicateGroups = new HashMap<String, Integer>();
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Mark near duplicates in the grid, images in the same group get the same number
+     * @param duplicateGroups see DuplicateIndex.findDuplicateGroups
+     */
+    public void setDuplicateGroups(Map<String, Integer> duplicateGroups) {
+        if(this.duplicateGroups.isEmpty() && duplicateGroups.isEmpty()){
+            return;
+        }
+        this.duplicateGroups = duplicateGroups;
+        notifyItemRangeChanged(0, imageList.size(), PAYLOAD_DUPLICATES);
+    }
+
+    /**
+     * Inflate cells into the view pool ahead of the first layout, e.g. while the folders are being scanned,
+     * so the first screen is bound without inflating
+     * Call it before recyclerView.setAdapter, it gives the RecyclerView this adapter's pool
+     * @param recyclerView
+     * @param count about a screen and a row of cells
+     */
+    public void prefetchViews(RecyclerView recyclerView, int count) {
+        if(recyclerView.getRecycledViewPool() != viewPool){
+            recyclerView.setRecycledViewPool(viewPool);
+        }
+        viewPool.setMaxRecycledViews(VIEW_TYPE_IMAGE, count);
+        for(int i = 0; i < count; i++){
+            viewPool.putRecycledView(createViewHolder(recyclerView, VIEW_TYPE_IMAGE));
+        }
+    }
+
+    /**
+     * @return the folder shown, null before setImages
+     */
+    public String getDirPath() {
+        return dirPath;
+    }
+
+    /**
+     * @param position
+     * @return full path of the image
+     */
+    public String getPath(int position) {
+        return dirPath + "/" + imageList.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return imageList.size();
+    }
+
+    /**
+     * 64-bit FNV-1a of the full path, so ids don't collide in folders of thousands of images like String.hashCode would
+     * @param position
+     * @return long
+     */
+    @Override
+    public long getItemId(int position) {
+        String path = getPath(position);
+        long hash = FNV_OFFSET_BASIS;
+        for(int i = 0; i < path.length(); i++){
+            hash ^= path.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return VIEW_TYPE_IMAGE;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        final ViewHolder viewHolder = new ViewHolder(inflater.inflate(R.layout.gridview_item, parent, false));
+
+        // will have to change this if number of columns change
+        viewHolder.imgView.setMaxWidth(screenWidth / 3);
+
+        viewHolder.imgView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = viewHolder.getAdapterPosition();
+                if(position == RecyclerView.NO_POSITION){
+                    return;             // removed by a diff, waiting for the next layout
+                }
+                ImageAdapter.toggleSelected(getPath(position));
+                notifyItemChanged(position, PAYLOAD_SELECTION);
+            }
+        });
+        return viewHolder;
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder viewHolder, int position) {
+        String filePath = getPath(position);
+
+        // same image as before, e.g. after setImages or from the pool: it's there or on its way
+        if(!filePath.equals(viewHolder.imgView.getTag())){
+            viewHolder.imgView.setImageResource(R.drawable.picture_no);
+            ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadImage(filePath, viewHolder.imgView, loadScope);
+        }
+
+        showSelection(viewHolder, ImageAdapter.isSelected(filePath));
+        showDuplicateGroup(viewHolder, filePath);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder viewHolder, int position, List<Object> payloads) {
+        if(payloads.isEmpty()){
+            onBindViewHolder(viewHolder, position);
+            return;
+        }
+
+        String filePath = getPath(position);
+        for(Object payload : payloads){
+            if(payload == PAYLOAD_SELECTION){
+                showSelection(viewHolder, ImageAdapter.isSelected(filePath));
+            }
+            else if(payload == PAYLOAD_DUPLICATES){
+                showDuplicateGroup(viewHolder, filePath);
+            }
+        }
+    }
+
+    private void showSelection(ViewHolder viewHolder, boolean selected) {
+        if(selected){
+            viewHolder.imgView.setColorFilter(Color.parseColor("#77000000"));
+            viewHolder.imgButton.setImageResource(R.drawable.picture_selected);
+        }
+        else {
+            viewHolder.imgView.setColorFilter(null);
+            viewHolder.imgButton.setImageResource(R.drawable.picture_unselected);
+        }
+    }
+
+    private void showDuplicateGroup(ViewHolder viewHolder, String filePath) {
+        Integer group = duplicateGroups.get(filePath);
+        if(group != null){
+            viewHolder.duplicateTag.setText(viewHolder.itemView.getContext().getString(R.string.duplicate_group, group));
+            viewHolder.duplicateTag.setVisibility(View.VISIBLE);
+        }
+        else {
+            viewHolder.duplicateTag.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Two listings of the same folder, by file name
+     */
+    private static class NameDiff extends DiffUtil.Callback {
+        private List<String> oldList;
+        private List<String> newList;
+
+        NameDiff(List<String> oldList, List<String> newList) {
+            this.oldList = oldList;
+            this.newList = newList;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldList.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newList.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldList.get(oldItemPosition).equals(newList.get(newItemPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return true;            // a cell is its path, the selection is rebound by payload
+        }
+    }
+
+    // to match gridview_item.xml layout, reduce findViewById operation
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        ImageView imgView;
+        ImageButton imgButton;
+        TextView duplicateTag;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            imgView = (ImageView) itemView.findViewById(R.id.item_image);
+            imgButton = (ImageButton) itemView.findViewById(R.id.item_select);
+            duplicateTag = (TextView) itemView.findViewById(R.id.item_duplicate);
+        }
+    }
+}
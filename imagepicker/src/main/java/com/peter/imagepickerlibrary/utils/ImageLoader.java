@@ -1,20 +1,45 @@
 package com.peter.imagepickerlibrary.utils;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.util.DisplayMetrics;
 import android.util.LruCache;
 import android.os.Handler;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
+import com.peter.imagepickerlibrary.model.FolderModel;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by Peter on 9/12/15.
@@ -23,24 +48,52 @@ import java.util.concurrent.Semaphore;
  * Creates a LruCache to temporarily put the images
  * Uses LIFO to handle polling threads
  *
- *
+ * Requests hold their ImageViews weakly, and can be cancelled together with a LoadScope,
+ * so the loader never keeps a finished Activity alive, only what's in its caches
  */
 public class ImageLoader {
     private static ImageLoader instance;
 
     private LruCache<String, Bitmap> lruCache;      // a cache to put images in
-    private ExecutorService threadPool;             // thread pool to queue up threads and tasks
+    private LruCache<String, Bitmap> coverCache;    // folder covers, kept apart so that scrolling the grid can't evict them
+    private LruCache<String, byte[]> encodedCache;  // compressed thumbnails of images decoded for requests, 10-20x smaller than their bitmaps, see encodedKey
+    private Map<String, Integer> cachedBuckets = new ConcurrentHashMap<String, Integer>();  // size bucket of each bitmap in lruCache
+    private ExecutorService coverThread;            // low priority thread to decode covers before the folder list is opened
+    private ExecutorService saveThread;             // flushDiskCache, one save at a time so two never write the same tmp file
+    private volatile ThumbnailPackStore packStore;  // thumbnails on disk, null until setDiskCacheDir
+    private volatile DimensionCache dimensionCache; // image sizes seen before, null until setDiskCacheDir
+    private volatile MediaIndex mediaIndex;         // image sizes from MediaStore, see setMediaIndex
+    private volatile File warmStartFile;            // see enableWarmStart, null until then
+    private volatile String lastFolder;             // where the grid was, saved with the warm start snapshot
+    private volatile int lastPosition;
+    private ExecutorService threadPool;             // thread pool to queue up threads and tasks, reads the files (I/O stage)
+    private ThreadPoolExecutor decodePool;          // decodes what threadPool has read (decode stage)
+    private ReadBufferPool readBufferPool;          // buffers handed from the I/O stage to the decode stage
+    private DecodePolicy decodePolicy;              // pixel budget and retries on OutOfMemoryError
     private static final int DEFAULT_THREAD_COUNT = 1;
+    private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+    private static final int HEADER_MARK_LIMIT = 64 * 1024;    // how much of the file the bounds pass may read and still be rewound
+    private static final int READ_BUFFER_COUNT = 6;             // encoded images in flight between the I/O and decode stages
+    private static final int DECODE_QUEUE_SIZE = 3;
+    private static final int MAX_BUFFERED_FILE_SIZE = 8 * 1024 * 1024;
+    private static final int READ_BUFFER_BUDGET_DIVISOR = 16;   // the read buffers together take 1/16 of the heap at most
+    private static final int DECODE_BUDGET_DIVISOR = 16;        // one decode may take 1/16 of the heap at most
+    private static final int WARM_START_KEYS = 60;              // a few screens of the grid
 
     public enum Type { FIFO, LIFO }
     private Type defaultType = Type.LIFO;           // way of executing/calling the tasks
 
-    private LinkedList<Runnable> taskQueue;         // queue of tasks
+    private LoaderStats stats = new LoaderStats();
+    private volatile LoadEventListener eventListener;   // null unless someone is tracing
+    private AtomicLong lastRequestId = new AtomicLong();
+    private static final long UNTRACED = 0;              // request id while there is no listener, nothing is timed
+
+    private LinkedList<LoadTask> taskQueue;         // queue of tasks, guarded by this
 
     private Thread poolThread;                      // backstage polling Thread
     private Handler poolThreadHandler;              // to handle threads
 
-    private Handler UIHandler;                      // to handle images and update the ImageViews
+    private Handler UIHandler;                      // to handle images and update the ImageViews, on the main looper
 
     private Semaphore semaphorePoolThreadHandler = new Semaphore(0);    // monitor the signal from the creation of PoolThreadHandler, make sure that PoolThreadHandler isn't null when used
     private Semaphore semaphoreThreadPool;                              // monitor the signal from the tasks, make sure that is it actually LIFO
@@ -59,7 +112,11 @@ public class ImageLoader {
                     @Override
                     public void handleMessage(Message msg) {            // when tasks comes, handler would send a message to looper
                         // thread pool will take a task to execute
-                        threadPool.execute(getTask());
+                        Runnable task = getTask();
+                        if(task == null){
+                            return;                                     // cancelled while in the queue
+                        }
+                        threadPool.execute(task);
 
                         try {
                             semaphoreThreadPool.acquire();              // when there are more tasks than to be processed, then this will block/stuck
@@ -86,14 +143,65 @@ public class ImageLoader {
             protected int sizeOf(String key, Bitmap value) {
                 return value.getRowBytes() * value.getHeight(); // to get the value of each Bitmap, aka size
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if(newValue == null){
+                    cachedBuckets.remove(key);
+                }
+            }
         };
+        coverCache = new LruCache<String, Bitmap>(maxMemory / 32){
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        // between the bitmaps and the disk: scrolling back over thousands of cells decodes small thumbnails, not the originals
+        // filled only by the requests' own decodes, with or without a disk cache; pack hits are decoded from the mapping
+        // and background writes stay out
+        encodedCache = new LruCache<String, byte[]>(maxMemory / 16){
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+
+        decodePolicy = new DecodePolicy(maxMemory / DECODE_BUDGET_DIVISOR / 4, new Runnable() {     // 4 bytes per ARGB_8888 pixel
+            @Override
+            public void run() {
+                // what's on screen is still referenced by the ImageViews, the caches only hold it for later
+                lruCache.evictAll();
+                coverCache.evictAll();
+                encodedCache.evictAll();
+            }
+        });
 
         // create a thread pool
         threadPool = Executors.newFixedThreadPool(threadCount);
-        taskQueue = new LinkedList<Runnable>();
+
+        // decode stage: one thread per core, and a short queue which blocks the I/O stage when the decoders fall behind
+        int decodeThreadCount = Runtime.getRuntime().availableProcessors();
+        decodePool = new ThreadPoolExecutor(decodeThreadCount, decodeThreadCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(DECODE_QUEUE_SIZE), new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        saveThread = Executors.newSingleThreadExecutor();
+        readBufferPool = new ReadBufferPool(READ_BUFFER_COUNT, maxMemory / READ_BUFFER_BUDGET_DIVISOR);
+        taskQueue = new LinkedList<LoadTask>();
         this.defaultType = type;
 
         semaphoreThreadPool = new Semaphore(threadCount);
+
+        // bound to the main looper, the loader may be created first on a background thread (e.g. ThumbnailPregenerator)
+        UIHandler = createUIHandler();
     }
 
     /**
@@ -101,7 +209,10 @@ public class ImageLoader {
      * Have to make sure that the backstage thread pool only takes the next task when it's free (also use semaphore)
      * @return Runnable
      */
-    private Runnable getTask() {
+    private synchronized Runnable getTask() {
+        if(taskQueue.isEmpty()){
+            return null;
+        }
         if(defaultType == Type.FIFO){
             return taskQueue.removeFirst();
         }
@@ -123,72 +234,616 @@ public class ImageLoader {
         return instance;
     }
 
+    /**
+     * A scope to cancel requests together, see LoadScope
+     * @return LoadScope
+     */
+    public LoadScope newScope() {
+        return new LoadScope(this);
+    }
+
+    /**
+     * Drop the cached bitmaps when memory runs out elsewhere, e.g. in ImageExporter
+     * Does nothing if the loader hasn't been created
+     */
+    static void evictMemoryCaches() {
+        ImageLoader loader = instance;
+        if(loader != null){
+            loader.lruCache.evictAll();
+            loader.coverCache.evictAll();
+            loader.encodedCache.evictAll();
+        }
+    }
+
+    /**
+     * Counters of the work done, see LoaderStats
+     * @return LoaderStats
+     */
+    public LoaderStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Get the phases of every request from now on, see LoadEventListener and ChromeTraceListener
+     * @param listener null to stop
+     */
+    public void setEventListener(LoadEventListener listener) {
+        eventListener = listener;
+    }
+
+    /**
+     * @return id for the phases of a new request, UNTRACED if there's no listener
+     */
+    private long newRequestId() {
+        return eventListener != null ? lastRequestId.incrementAndGet() : UNTRACED;
+    }
+
+    /**
+     * @param requestId
+     * @return start time of a phase, 0 without reading the clock if the request is untraced
+     */
+    private static long traceStart(long requestId) {
+        return requestId != UNTRACED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Tell the listener a phase has ended now
+     * @param requestId
+     * @param path
+     * @param phase
+     * @param startNanos from traceStart
+     */
+    private void trace(long requestId, String path, LoadEventListener.Phase phase, long startNanos) {
+        LoadEventListener listener = eventListener;
+        if(requestId != UNTRACED && listener != null){
+            listener.onEvent(requestId, path, phase, startNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * Keep thumbnails on disk, so images decoded once are not decoded from the full size file again in later sessions
+     * @param cacheDir usually context.getCacheDir()
+     */
+    public synchronized void setDiskCacheDir(File cacheDir) {
+        if(packStore == null){
+            packStore = ThumbnailPackStore.getShared(cacheDir);
+            dimensionCache = new DimensionCache(new File(cacheDir, "dimensions"));
+        }
+    }
+
+    /**
+     * @return ThumbnailPackStore, null until setDiskCacheDir
+     */
+    ThumbnailPackStore getPackStore() {
+        return packStore;
+    }
+
+    /**
+     * Sizes of the images the loader has measured, the ones MediaStore doesn't know
+     * @return DimensionCache, null until setDiskCacheDir
+     */
+    public DimensionCache getDimensionCache() {
+        return dimensionCache;
+    }
+
+    /**
+     * Take the image sizes from MediaStore's WIDTH and HEIGHT columns, so those images are never measured
+     * The index is only read, the dimension cache keeps the sizes the loader measures itself
+     * @param mediaIndex may be null
+     */
+    public void setMediaIndex(MediaIndex mediaIndex) {
+        this.mediaIndex = mediaIndex;
+    }
+
+    /**
+     * Save what's only in memory to the disk cache, in the background
+     * Call it when the picker goes to the background
+     * With enableWarmStart, also what the memory cache holds, see there
+     */
+    public void flushDiskCache() {
+        final DimensionCache dimensions = dimensionCache;
+        if(dimensions == null){
+            return;
+        }
+        final File warmStart = warmStartFile;
+        final WarmStartSnapshot snapshot = warmStart != null ? takeSnapshot() : null;     // now, before anything else is evicted
+        saveThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                dimensions.save();
+                if(snapshot != null){
+                    snapshot.write(warmStart);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remember what the memory cache holds when the app is put away or trimmed, and fill it with that again
+     * when it's next started, so a picker reopened after its process was killed shows its first screen at once
+     * Only thumbnails already in the disk cache are brought back, in the background, the most recently shown first
+     * Call it in onCreate before the grid is bound, it sets the disk cache to the app's cache dir
+     * Saving on trim needs Ice Cream Sandwich, before that it's only saved by flushDiskCache
+     * @param context
+     */
+    public synchronized void enableWarmStart(Context context) {
+        if(warmStartFile != null){
+            return;
+        }
+        setDiskCacheDir(context.getCacheDir());
+        File file = new File(context.getCacheDir(), "warmstart");
+
+        // a few KB, read here so getLastFolder has it right away
+        WarmStartSnapshot snapshot = WarmStartSnapshot.read(file);
+        lastFolder = snapshot.folder;
+        lastPosition = snapshot.position;
+        warmStartFile = file;
+        rehydrate(snapshot);
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH){
+            registerTrimCallbacks(context.getApplicationContext());
+        }
+    }
+
+    /**
+     * Where the grid is, saved with the warm start snapshot
+     * @param folder full path, null if the grid isn't showing a folder
+     * @param position first visible cell
+     */
+    public void setLastPosition(String folder, int position) {
+        lastFolder = folder;
+        lastPosition = position;
+    }
+
+    /**
+     * @return folder the grid was showing when the warm start snapshot was saved, null if none
+     */
+    public String getLastFolder() {
+        return lastFolder;
+    }
+
+    /**
+     * @return first visible cell in getLastFolder
+     */
+    public int getLastPosition() {
+        return lastPosition;
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerTrimCallbacks(Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // put away, or about to be killed, the running levels come often and change nothing worth saving
+                if(level >= TRIM_MEMORY_UI_HIDDEN){
+                    flushDiskCache();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flushDiskCache();
+            }
+        });
+    }
+
+    /**
+     * @return the most recently used bitmaps in lruCache that have a size bucket, most recent first
+     */
+    private WarmStartSnapshot takeSnapshot() {
+        WarmStartSnapshot snapshot = new WarmStartSnapshot();
+        snapshot.folder = lastFolder;
+        snapshot.position = lastPosition;
+
+        List<String> keys = new ArrayList<String>(lruCache.snapshot().keySet());       // least recently used first
+        for(int i = keys.size() - 1; i >= 0 && snapshot.paths.size() < WARM_START_KEYS; i--){
+            Integer bucket = cachedBuckets.get(keys.get(i));
+            if(bucket != null){
+                snapshot.paths.add(keys.get(i));
+                snapshot.buckets.add(bucket);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Decode the thumbnails of a snapshot from the packs into lruCache, in the background
+     * Stops at 3/4 of the cache, so the ones decoded first (the most recent) aren't evicted by the rest
+     * @param snapshot
+     */
+    private void rehydrate(final WarmStartSnapshot snapshot) {
+        final ThumbnailPackStore store = packStore;
+        if(snapshot.paths.isEmpty() || store == null){
+            return;
+        }
+        new Thread(){
+            @Override
+            public void run() {
+                // default priority on purpose, it's racing the grid's first requests
+                for(int i = 0; i < snapshot.paths.size(); i++){
+                    if(lruCache.size() >= lruCache.maxSize() / 4 * 3){
+                        break;
+                    }
+                    String path = snapshot.paths.get(i);
+                    int bucket = snapshot.buckets.get(i);
+                    if(getBitmapFromLruCache(path) != null){
+                        continue;           // the grid got there first
+                    }
+                    ByteBuffer thumbnail = store.getEncoded(path, bucket);
+                    if(thumbnail == null){
+                        continue;           // changed since, or never written
+                    }
+                    addBitmapToLruCache(path, decodeThumbnail(thumbnail), bucket);
+                }
+            }
+        }.start();
+    }
+
     /**
      * Set image for ImageView according to path
      * El más importante método
      * @param path
      * @param imageView
      */
-    public void loadImage(final String path, final ImageView imageView){        // also need an ImageView to show the image
+    public void loadImage(String path, ImageView imageView){
+        loadImage(path, imageView, null);
+    }
+
+    /**
+     * Same as loadImage(path, imageView), cancelled along with the other requests of the scope
+     * @param path
+     * @param imageView
+     * @param scope may be null
+     */
+    public void loadImage(final String path, ImageView imageView, LoadScope scope){        // also need an ImageView to show the image
         imageView.setTag(path);
 
-        if(UIHandler == null){
-            UIHandler = new Handler(){
-                @Override
-                public void handleMessage(Message msg) {                        // to be called when image is loaded successfully
-                    // get selected image, set image for ImageView callbacks
-                    ImageHolder holder = (ImageHolder)msg.obj;
-                    Bitmap bm = holder.bitmap;
-                    ImageView imgView = holder.imageView;
-                    String path = holder.path;
-
-                    if(imgView.getTag().toString().equals(path)){         // if path is the path needed; in case it was still the previous ImageView
-                        imgView.setImageBitmap(bm);
-                    }
-                }
-            };
-        }
+        stats.onRequest();
+        final long requestId = newRequestId();
 
         // get bitmap from cache according to path
+        long probeStart = traceStart(requestId);
         Bitmap bm = getBitmapFromLruCache(path);
+        trace(requestId, path, bm != null ? LoadEventListener.Phase.MEMORY_CACHE_HIT : LoadEventListener.Phase.MEMORY_CACHE_MISS, probeStart);
 
         if(bm != null){
-            refreshBitmap(path, imageView, bm);
+            stats.onMemoryHit();
+            refreshBitmap(new LoadTask(path, imageView, scope, requestId), bm, false);
         }
         else {
-            addTaskToQueue(new Runnable(){
+            final LoadTask task = new LoadTask(path, imageView, scope, requestId){
                 @Override
                 public void run() {
-                    // load images
-                    // compress images
-                    // 1. first to get the size of the image
-                    ImageSize imageSize = getImageViewSize(imageView);
-                    // 2. second to compress the image
-                    Bitmap bm = decodeSampledBitmapFromPath(path, imageSize.width, imageSize.height);
-                    // 3. third to add the image to Cache
-                    addBitmapToLruCache(path, bm);
-
-                    refreshBitmap(path, imageView, bm);
-
-                    semaphoreThreadPool.release();              // let the thread pool be able to get the next task to execute
+                    trace(requestId, path, LoadEventListener.Phase.DEQUEUE, enqueued);
+                    // I/O stage, only reads: the decoding is handed to decodePool so this thread can start reading the next image
+                    try {
+                        ImageView imageView = target.get();
+                        if(imageView == null || isCancelled()){
+                            cancelInFlight(this);
+                            return;
+                        }
+                        // load images
+                        // compress images
+                        // 1. first to get the size of the image
+                        ImageSize imageSize = getImageViewSize(imageView);
+                        imageView = null;                           // not held while reading
+                        // 2. second to read the thumbnail from disk, or else the whole file
+                        EncodedImage encoded = readEncodedImage(path, imageSize, requestId);
+                        if(encoded == null){
+                            refreshBitmap(this, null, false);
+                            return;
+                        }
+                        // 3. third to compress the image and add it to Cache, on a decode thread
+                        decodePool.execute(new DecodeTask(encoded, this));    // blocks while the decode queue is full
+                    } finally {
+                        semaphoreThreadPool.release();              // let the thread pool be able to get the next task to execute
+                    }
                 }
-            });
+            };
+            trace(requestId, path, LoadEventListener.Phase.ENQUEUE, task.enqueued);
+            addTaskToQueue(task);
         }
     }
 
     /**
-     * Refresh, the callback to load image after finding the image
-     * Let the image be processed
+     * @param path
+     * @param bucket
+     * @return key of a thumbnail in encodedCache, by size bucket like in the packs
+     */
+    private static String encodedKey(String path, int bucket) {
+        return bucket + ":" + path;
+    }
+
+    /**
+     * Read the encoded image into memory, from the thumbnail pack if it's there, otherwise from the original file
+     * @param path
+     * @param imageSize
+     * @param requestId
+     * @return EncodedImage, null if it can't be read
+     */
+    private EncodedImage readEncodedImage(String path, ImageSize imageSize, long requestId) {
+        EncodedImage encoded = new EncodedImage();
+        encoded.path = path;
+        encoded.imageSize = imageSize;
+        encoded.bucket = ThumbnailPackStore.getSizeBucket(imageSize.width, imageSize.height);
+        encoded.requestId = requestId;
+
+        String key = encodedKey(path, encoded.bucket);
+        long encodedProbeStart = traceStart(requestId);
+        byte[] data = encodedCache.get(key);
+        trace(requestId, path, data != null ? LoadEventListener.Phase.ENCODED_CACHE_HIT : LoadEventListener.Phase.ENCODED_CACHE_MISS, encodedProbeStart);
+        if(data != null){
+            stats.onEncodedHit();
+            encoded.thumbnail = ByteBuffer.wrap(data);
+            return encoded;
+        }
+
+        ThumbnailPackStore store = packStore;
+        if(store != null){
+            long probeStart = traceStart(requestId);
+            ByteBuffer slice = store.getEncoded(path, encoded.bucket);
+            trace(requestId, path, slice != null ? LoadEventListener.Phase.DISK_CACHE_HIT : LoadEventListener.Phase.DISK_CACHE_MISS, probeStart);
+            if(slice != null){
+                stats.onDiskHit();
+                encoded.thumbnail = slice;          // decoded straight from the mapping, no copy
+                return encoded;
+            }
+        }
+
+        long openStart = traceStart(requestId);
+        File file = new File(path);
+        long length = file.length();
+        encoded.lastModified = file.lastModified();
+        if(length <= 0){
+            return null;
+        }
+        if(length > MAX_BUFFERED_FILE_SIZE || length > readBufferPool.getMaxBytes()){
+            return encoded;             // too big to hold in memory, the decode stage streams it from the file
+        }
+
+        byte[] buffer;
+        try {
+            buffer = readBufferPool.acquire((int) length);      // blocks while all the buffers, or all the bytes, are in flight
+        } catch (OutOfMemoryError e) {
+            return encoded;             // no memory for the buffer, the decode stage streams it from the file
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            int n;
+            while(read < length && (n = in.read(buffer, read, (int) length - read)) > 0){
+                read += n;
+            }
+            encoded.bytes = buffer;
+            encoded.length = read;
+            return encoded;
+        } catch (IOException e) {
+            e.printStackTrace();
+            readBufferPool.release(buffer);
+            return null;
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            trace(requestId, path, LoadEventListener.Phase.FILE_OPEN, openStart);
+        }
+    }
+
+    /**
+     * Decode stage, CPU only, runs on decodePool
+     */
+    private class DecodeTask implements Runnable {
+        private EncodedImage encoded;
+        private LoadTask request;
+
+        DecodeTask(EncodedImage encoded, LoadTask request) {
+            this.encoded = encoded;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            String path = encoded.path;
+            long requestId = encoded.requestId;
+            if(request.isCancelled() || request.target.get() == null){      // the screen is gone, don't spend the CPU
+                if(encoded.bytes != null){
+                    readBufferPool.release(encoded.bytes);
+                }
+                cancelInFlight(request);
+                return;
+            }
+
+            Bitmap bm;
+            if(encoded.thumbnail != null){
+                long decodeStart = traceStart(requestId);
+                bm = decodeThumbnail(encoded.thumbnail);
+                trace(requestId, path, LoadEventListener.Phase.PIXEL_DECODE, decodeStart);
+            }
+            else if(encoded.bytes != null){
+                try {
+                    bm = decodeSampledBitmapFromBytes(encoded, encoded.imageSize.width, encoded.imageSize.height);
+                } finally {
+                    readBufferPool.release(encoded.bytes);      // also when the decode failed, or the ring would run dry
+                }
+            }
+            else {
+                bm = decodeSampledBitmapFromPath(path, encoded.imageSize.width, encoded.imageSize.height, requestId);
+            }
+            if(encoded.thumbnail == null){
+                stats.onDecode();
+            }
+
+            long insertStart = traceStart(requestId);
+            ThumbnailPackStore store = packStore;
+            if(encoded.thumbnail == null && bm != null){
+                // without setDiskCacheDir the encoded tier is still filled, only the disk write is skipped
+                byte[] data = store != null ? store.put(path, encoded.bucket, bm) : ThumbnailPackStore.compress(bm);
+                if(data != null){
+                    encodedCache.put(encodedKey(path, encoded.bucket), data);       // shown now, likely scrolled back to
+                }
+            }
+            addBitmapToLruCache(path, bm, encoded.bucket);
+            trace(requestId, path, LoadEventListener.Phase.CACHE_INSERT, insertStart);
+
+            refreshBitmap(request, bm, encoded.thumbnail == null);
+        }
+    }
+
+    private Handler createUIHandler() {
+        return new Handler(Looper.getMainLooper()){
+            @Override
+            public void handleMessage(Message msg) {                        // to be called when image is loaded successfully
+                // get selected image, set image for ImageView callbacks
+                ImageHolder holder = (ImageHolder)msg.obj;
+                Bitmap bm = holder.bitmap;
+                LoadTask request = holder.request;
+                ImageView imgView = request.target.get();
+                String path = request.path;
+
+                if(imgView != null && !request.isCancelled() && path.equals(imgView.getTag())){     // if path is the path needed; in case it was still the previous ImageView
+                    imgView.setImageBitmap(bm);
+                    if(bm != null){
+                        stats.onDisplayed();
+                    }
+                    trace(request.requestId, path, LoadEventListener.Phase.DISPLAY, holder.posted);
+                }
+                else {
+                    if(holder.decoded){
+                        stats.onWastedDecode();
+                    }
+                    request.forget();
+                    trace(request.requestId, path, LoadEventListener.Phase.CANCEL, traceStart(request.requestId));
+                }
+            }
+        };
+    }
+
+    /**
+     * Set a folder cover, decoded at the given size and kept in the cover cache
+     * Covers prefetched by prefetchCovers are set right away, without going through the queue
+     * @param path
+     * @param imageView
+     * @param size width and height of the cover, in pixels
+     */
+    public void loadCover(String path, ImageView imageView, int size) {
+        loadCover(path, imageView, size, null);
+    }
+
+    /**
+     * Same as loadCover(path, imageView, size), cancelled along with the other requests of the scope
      * @param path
      * @param imageView
+     * @param size width and height of the cover, in pixels
+     * @param scope may be null
+     */
+    public void loadCover(final String path, ImageView imageView, final int size, LoadScope scope) {
+        imageView.setTag(path);
+        if(path == null){               // empty folder model, keep the placeholder
+            return;
+        }
+
+        final long requestId = newRequestId();
+
+        long probeStart = traceStart(requestId);
+        Bitmap bm = coverCache.get(path);
+        trace(requestId, path, bm != null ? LoadEventListener.Phase.MEMORY_CACHE_HIT : LoadEventListener.Phase.MEMORY_CACHE_MISS, probeStart);
+        if(bm != null){
+            imageView.setImageBitmap(bm);           // already on the UI thread
+            return;
+        }
+
+        LoadTask task = new LoadTask(path, imageView, scope, requestId) {
+            @Override
+            public void run() {
+                trace(requestId, path, LoadEventListener.Phase.DEQUEUE, enqueued);
+                try {
+                    if(isCancelled() || target.get() == null){
+                        cancelInFlight(this);
+                        return;
+                    }
+                    Bitmap bm = getCover(path, size, requestId);
+                    refreshBitmap(this, bm, false);
+                } finally {
+                    semaphoreThreadPool.release();
+                }
+            }
+        };
+        trace(requestId, path, LoadEventListener.Phase.ENQUEUE, task.enqueued);
+        addTaskToQueue(task);
+    }
+
+    /**
+     * Decode the covers of the first folders in the background, so that the folder list shows them as soon as it's opened
+     * Call it as soon as the folders are scanned
+     * @param folders
+     * @param size width and height of the covers, in pixels
+     * @param count how many folders from the top of the list
+     */
+    public void prefetchCovers(List<FolderModel> folders, final int size, int count) {
+        if(coverThread == null){
+            coverThread = Executors.newSingleThreadExecutor();
+        }
+
+        final List<String> paths = new ArrayList<String>();
+        for(int i = 0; i < folders.size() && i < count; i++){
+            paths.add(folders.get(i).getFirstImgPath());
+        }
+
+        coverThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);     // the grid's decodes come first
+                for(String path : paths){
+                    getCover(path, size, UNTRACED);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param path
+     * @param size
+     * @param requestId
+     * @return cover from the cover cache, decoded and cached if it wasn't there
+     */
+    private Bitmap getCover(String path, int size, long requestId) {
+        Bitmap bm = coverCache.get(path);
+        if(bm == null && path != null){
+            bm = decodeSampledBitmapFromPath(path, size, size, requestId);
+            if(bm != null){
+                long insertStart = traceStart(requestId);
+                coverCache.put(path, bm);
+                trace(requestId, path, LoadEventListener.Phase.CACHE_INSERT, insertStart);
+            }
+        }
+        return bm;
+    }
+
+    /**
+     * Refresh, the callback to load image after finding the image
+     * Let the image be processed
+     * @param request
      * @param bm
+     * @param decoded true if bm was decoded from the original file for this request, to count the wasted ones
      */
-    private void refreshBitmap(String path, ImageView imageView, Bitmap bm) {
+    private void refreshBitmap(LoadTask request, Bitmap bm, boolean decoded) {
         Message message = Message.obtain();
         ImageHolder holder = new ImageHolder();
         holder.bitmap = bm;
-        holder.path = path;
-        holder.imageView = imageView;
+        holder.request = request;
+        holder.decoded = decoded;
+        holder.posted = traceStart(request.requestId);
+        trace(request.requestId, request.path, LoadEventListener.Phase.UI_POST, holder.posted);
         message.obj = holder;
         UIHandler.sendMessage(message);
     }
@@ -197,11 +852,14 @@ public class ImageLoader {
      * Add bitmap/image to LruCache
      * @param path
      * @param bm
+     * @param bucket size bucket it was decoded for, see ThumbnailPackStore.getSizeBucket
      */
-    private void addBitmapToLruCache(String path, Bitmap bm) {
+    private void addBitmapToLruCache(String path, Bitmap bm, int bucket) {
         if(getBitmapFromLruCache(path) == null){
             if(bm != null){
+                cachedBuckets.put(path, bucket);
                 lruCache.put(path, bm);
+                stats.onCacheSize(lruCache.size());
             }
         }
     }
@@ -209,24 +867,160 @@ public class ImageLoader {
     /**
      * Compress image according to width and height in which the image is to be displayed
      * Using options
+     * The file is opened once, the bounds pass reads the header and the stream is rewound for the pixel pass
+     * The bounds pass is skipped for images in the dimension cache
      * @param path
      * @param width
      * @param height
-     * @return bitmap
+     * @param requestId
+     * @return bitmap, null if it can't be decoded or there's no memory for it
      */
-    private Bitmap decodeSampledBitmapFromPath(String path, int width, int height) {
+    private Bitmap decodeSampledBitmapFromPath(final String path, int width, int height, long requestId) {
         BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;      // gets the width and height but doesn't load the image to memory
-        BitmapFactory.decodeFile(path, options);    // now options gets the width and height and other info
+        DimensionCache dimensions = dimensionCache;
+        long lastModified = new File(path).lastModified();
+        int[] size = new int[2];
+        boolean knownSize = getKnownSize(path, lastModified, size);
+
+        InputStream in = null;
+        try {
+            long openStart = traceStart(requestId);
+            in = new BufferedInputStream(new FileInputStream(path), DECODE_BUFFER_SIZE);
+            trace(requestId, path, LoadEventListener.Phase.FILE_OPEN, openStart);
+
+            if(knownSize){
+                options.outWidth = size[0];
+                options.outHeight = size[1];
+            }
+            else {
+                long boundsStart = traceStart(requestId);
+                in.mark(HEADER_MARK_LIMIT);
+                options.inJustDecodeBounds = true;      // gets the width and height but doesn't load the image to memory
+                BitmapFactory.decodeStream(in, null, options);    // now options gets the width and height and other info
+                try {
+                    in.reset();
+                } catch (IOException e) {               // header bigger than the mark (huge EXIF), open again
+                    in.close();
+                    in = new BufferedInputStream(new FileInputStream(path), DECODE_BUFFER_SIZE);
+                }
+                if(dimensions != null){
+                    dimensions.put(path, lastModified, options.outWidth, options.outHeight);
+                }
+                trace(requestId, path, LoadEventListener.Phase.BOUNDS_DECODE, boundsStart);
+            }
+
+            options.inSampleSize = calculateInSampleSize(options, width, height);
+
+            // use inSampleSize to decode the image again
+            // this time not only to get width and height, but also into memory
+            options.inJustDecodeBounds = false;
+            long decodeStart = traceStart(requestId);
+            final InputStream stream = in;
+            Bitmap bm = decodePolicy.decode(options, new DecodePolicy.Source() {     // compress according to inSampleSize
+                @Override
+                public Bitmap decode(BitmapFactory.Options options, int attempt) {
+                    if(attempt == 0){
+                        return BitmapFactory.decodeStream(stream, null, options);
+                    }
+                    return BitmapFactory.decodeFile(path, options);        // the failed attempt has read the stream
+                }
+            });
+            trace(requestId, path, LoadEventListener.Phase.PIXEL_DECODE, decodeStart);
+            return bm;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Same as decodeSampledBitmapFromPath, from the bytes the I/O stage has read
+     * @param encoded
+     * @param width
+     * @param height
+     * @return bitmap, null if it can't be decoded or there's no memory for it
+     */
+    private Bitmap decodeSampledBitmapFromBytes(final EncodedImage encoded, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        DimensionCache dimensions = dimensionCache;
+        int[] size = new int[2];
+
+        if(getKnownSize(encoded.path, encoded.lastModified, size)){
+            options.outWidth = size[0];
+            options.outHeight = size[1];
+        }
+        else {
+            long boundsStart = traceStart(encoded.requestId);
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(encoded.bytes, 0, encoded.length, options);
+            if(dimensions != null){
+                dimensions.put(encoded.path, encoded.lastModified, options.outWidth, options.outHeight);
+            }
+            trace(encoded.requestId, encoded.path, LoadEventListener.Phase.BOUNDS_DECODE, boundsStart);
+        }
 
         options.inSampleSize = calculateInSampleSize(options, width, height);
+        long decodeStart = traceStart(encoded.requestId);
+        Bitmap bm = null;
+        try {
+            bm = decodePolicy.decode(options, new DecodePolicy.Source() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options options, int attempt) {
+                    return BitmapFactory.decodeByteArray(encoded.bytes, 0, encoded.length, options);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();        // not from a byte array
+        }
+        trace(encoded.requestId, encoded.path, LoadEventListener.Phase.PIXEL_DECODE, decodeStart);
+        return bm;
+    }
 
-        // use inSampleSize to decode the image again
-        // this time not only to get width and height, but also into memory
-        options.inJustDecodeBounds = false;
-        Bitmap bitmap = BitmapFactory.decodeFile(path, options);    // compress according to inSampleSize
+    /**
+     * Size of an image without reading it, from the media index or else the dimension cache
+     * @param path
+     * @param lastModified of the file, milliseconds
+     * @param size filled with width and height
+     * @return false if neither knows the image, or its file has changed since
+     */
+    private boolean getKnownSize(String path, long lastModified, int[] size) {
+        MediaIndex index = mediaIndex;
+        if(index != null){
+            int row = index.indexOfImage(path);
+            if(row >= 0 && index.getWidth(row) > 0 && index.getHeight(row) > 0 && index.getDate(row) == lastModified / 1000){
+                size[0] = index.getWidth(row);
+                size[1] = index.getHeight(row);
+                return true;
+            }
+        }
+        DimensionCache dimensions = dimensionCache;
+        return dimensions != null && dimensions.get(path, lastModified, size);
+    }
 
-        return bitmap;
+    /**
+     * @param thumbnail from the pack, already at the size it's shown
+     * @return bitmap, null if it can't be decoded or there's no memory for it
+     */
+    private Bitmap decodeThumbnail(final ByteBuffer thumbnail) {
+        try {
+            return decodePolicy.decode(new BitmapFactory.Options(), new DecodePolicy.Source() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options options, int attempt) {
+                    return BitmapFactory.decodeStream(new ByteBufferInputStream(thumbnail.duplicate()), null, options);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
@@ -236,7 +1030,7 @@ public class ImageLoader {
      * @param requiredHeight
      * @return inSampleSize
      */
-    private int calculateInSampleSize(BitmapFactory.Options options, int requiredWidth, int requiredHeight) {
+    static int calculateInSampleSize(BitmapFactory.Options options, int requiredWidth, int requiredHeight) {
         int width = options.outWidth;
         int height = options.outHeight;
 
@@ -288,7 +1082,7 @@ public class ImageLoader {
         }
         if(height <= 0){    // if width is set to wrap content or match parent
 //            height = imageView.getMaxHeight();                                // API 16 and higher
-            width = getImageViewFieldValue(imageView, "mMaxHeight");            // all APIs, field name see ImageView declaration
+            height = getImageViewFieldValue(imageView, "mMaxHeight");            // all APIs, field name see ImageView declaration
             // some still return 0
         }
         if(height <= 0){     // most unfortunately the width of the screen
@@ -328,10 +1122,10 @@ public class ImageLoader {
 
     /**
      * Add task to queue
-     * @param runnable
+     * @param task
      */
-    private synchronized void addTaskToQueue(Runnable runnable) {
-        taskQueue.add(runnable);
+    private synchronized void addTaskToQueue(LoadTask task) {
+        taskQueue.add(task);
 
         // at this point, it is possible that poolThreadHandler hasn't been created yet (as they are parallel)
         // have to make sure that this doesn't start before poolThreadHandler is created
@@ -346,12 +1140,44 @@ public class ImageLoader {
         poolThreadHandler.sendEmptyMessage(0x110);  // any value
     }
 
+    /**
+     * Drop the queued requests of a cancelled scope, see LoadScope.cancel
+     * Their messages to poolThreadHandler stay, getTask returns null for them
+     * @param scope
+     */
+    synchronized void cancelQueued(LoadScope scope) {
+        Iterator<LoadTask> iterator = taskQueue.iterator();
+        while(iterator.hasNext()){
+            LoadTask task = iterator.next();
+            if(task.scope == scope){
+                iterator.remove();
+                task.forget();
+                trace(task.requestId, task.path, LoadEventListener.Phase.CANCEL, traceStart(task.requestId));
+            }
+        }
+    }
+
+    /**
+     * Drop a request that was cancelled after it left the queue, on a worker thread
+     * Its tag is cleared on the UI thread, like cancelQueued does, so the cell is loaded again when it's bound again
+     * @param task
+     */
+    private void cancelInFlight(final LoadTask task) {
+        trace(task.requestId, task.path, LoadEventListener.Phase.CANCEL, traceStart(task.requestId));
+        UIHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                task.forget();
+            }
+        });
+    }
+
     /**
      * get bitmap from cache according to path
      * @param path
      * @return Bitmap (from LruCache)
      */
-    private Bitmap getBitmapFromLruCache(String path) {
+    Bitmap getBitmapFromLruCache(String path) {
         return lruCache.get(path);
     }
 
@@ -366,13 +1192,69 @@ public class ImageLoader {
         int height;
     }
 
+    /**
+     * What the I/O stage hands to the decode stage
+     * Either a thumbnail from the pack, the whole file in a pooled buffer, or neither if the file is too big to buffer
+     */
+    private class EncodedImage{
+        String path;
+        ImageSize imageSize;
+        int bucket;
+        long lastModified;
+        ByteBuffer thumbnail;
+        byte[] bytes;           // from readBufferPool, released after decoding
+        int length;
+        long requestId;
+    }
+
+    /**
+     * A request, from the queue to the UI thread
+     * The ImageView is held weakly, so a request can't keep a destroyed Activity alive
+     */
+    private class LoadTask implements Runnable {
+        final String path;
+        final WeakReference<ImageView> target;
+        final LoadScope scope;          // null if it can't be cancelled
+        final int generation;           // of the scope when the request was made
+        final long requestId;
+        final long enqueued;            // traceStart of the request
+
+        LoadTask(String path, ImageView imageView, LoadScope scope, long requestId) {
+            this.path = path;
+            this.target = new WeakReference<ImageView>(imageView);
+            this.scope = scope;
+            this.generation = scope != null ? scope.getGeneration() : 0;
+            this.requestId = requestId;
+            this.enqueued = traceStart(requestId);
+        }
+
+        @Override
+        public void run() {             // nothing to do in the background for a memory cache hit
+        }
+
+        boolean isCancelled() {
+            return scope != null && scope.getGeneration() != generation;
+        }
+
+        /**
+         * Clear the tag of a cancelled request still on its ImageView, so binding the same path again loads it, on the UI thread
+         */
+        void forget() {
+            ImageView imageView = target.get();
+            if(imageView != null && path.equals(imageView.getTag())){
+                imageView.setTag(null);
+            }
+        }
+    }
+
     /**
      * New class for images
      * To prevent handling other ImageViews
      */
     private class ImageHolder{
         Bitmap bitmap;
-        ImageView imageView;
-        String path;
+        LoadTask request;
+        boolean decoded;
+        long posted;            // traceStart of the post to the UI thread
     }
 }
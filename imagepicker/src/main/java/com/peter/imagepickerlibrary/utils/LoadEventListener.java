@@ -0,0 +1,37 @@
+package com.peter.imagepickerlibrary.utils;
+
+/**
+ * Timeline of each ImageLoader request, phase by phase, to see why one thumbnail in particular was slow
+ * Set it with ImageLoader.setEventListener, nothing is measured while there is none
+ *
+ * Called on the thread where the phase ended (the UI thread, an I/O thread or a decode thread), so it has to be quick
+ * Times are System.nanoTime(); instant phases have startNanos == endNanos
+ */
+public interface LoadEventListener {
+    enum Phase {
+        ENQUEUE,                // instant, the request went into the task queue
+        DEQUEUE,                // from enqueue until an I/O thread took it, the time spent waiting in the queue
+        MEMORY_CACHE_HIT,       // lookup in the bitmap cache
+        MEMORY_CACHE_MISS,
+        ENCODED_CACHE_HIT,      // lookup in the compressed thumbnails kept in memory
+        ENCODED_CACHE_MISS,
+        DISK_CACHE_HIT,         // lookup in the thumbnail packs
+        DISK_CACHE_MISS,
+        FILE_OPEN,              // opening and reading the original file
+        BOUNDS_DECODE,          // the header pass, skipped for sizes already in the MediaIndex or the DimensionCache
+        PIXEL_DECODE,
+        CACHE_INSERT,           // into the bitmap cache and the thumbnail packs
+        UI_POST,                // instant, the bitmap was sent to the UI thread
+        DISPLAY,                // from the post until the bitmap was set on the ImageView
+        CANCEL                  // instant, dropped as the ImageView was showing another image by then
+    }
+
+    /**
+     * @param requestId same for all the phases of a request
+     * @param path
+     * @param phase
+     * @param startNanos
+     * @param endNanos
+     */
+    void onEvent(long requestId, String path, Phase phase, long startNanos, long endNanos);
+}
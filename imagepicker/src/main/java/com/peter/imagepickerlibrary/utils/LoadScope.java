@@ -0,0 +1,29 @@
+package com.peter.imagepickerlibrary.utils;
+
+/**
+ * The requests of one screen, an Activity or a pop-up window, to be cancelled together when it goes away
+ * Get one with ImageLoader.newScope, pass it to loadImage and loadCover, and call cancel in onDestroy (or when the pop-up is dismissed)
+ *
+ * cancel drops what's still in the queue, and what is being read or decoded is dropped before it gets to the ImageView
+ * The scope can be used again after cancel, only the requests made before it are cancelled
+ */
+public class LoadScope {
+    private ImageLoader loader;
+    private volatile int generation;        // requests made before the last cancel have an older one
+
+    LoadScope(ImageLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Cancel all the requests made so far in this scope, on the UI thread
+     */
+    public void cancel() {
+        generation++;                       // only written on the UI thread
+        loader.cancelQueued(this);
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+}
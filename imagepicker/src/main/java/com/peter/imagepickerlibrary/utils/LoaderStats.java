@@ -0,0 +1,103 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of ImageLoader, to see how much work a scroll session costs
+ * All counts are since the loader was created or since the last reset
+ */
+public class LoaderStats {
+    private AtomicLong requests = new AtomicLong();
+    private AtomicLong memoryHits = new AtomicLong();
+    private AtomicLong encodedHits = new AtomicLong();      // compressed thumbnails in memory
+    private AtomicLong diskHits = new AtomicLong();
+    private AtomicLong decodes = new AtomicLong();          // decodes of the original files
+    private AtomicLong wastedDecodes = new AtomicLong();    // decoded, but the ImageView was showing another image by then
+    private AtomicLong displayed = new AtomicLong();
+    private AtomicLong peakCacheBytes = new AtomicLong();
+    private AtomicLong firstDisplayNanos = new AtomicLong();    // System.nanoTime() of the first image set, 0 if none yet
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getEncodedHits() {
+        return encodedHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getDecodes() {
+        return decodes.get();
+    }
+
+    public long getWastedDecodes() {
+        return wastedDecodes.get();
+    }
+
+    public long getDisplayed() {
+        return displayed.get();
+    }
+
+    public long getPeakCacheBytes() {
+        return peakCacheBytes.get();
+    }
+
+    public long getFirstDisplayNanos() {
+        return firstDisplayNanos.get();
+    }
+
+    public void reset() {
+        requests.set(0);
+        memoryHits.set(0);
+        encodedHits.set(0);
+        diskHits.set(0);
+        decodes.set(0);
+        wastedDecodes.set(0);
+        displayed.set(0);
+        peakCacheBytes.set(0);
+        firstDisplayNanos.set(0);
+    }
+
+    void onRequest() {
+        requests.incrementAndGet();
+    }
+
+    void onMemoryHit() {
+        memoryHits.incrementAndGet();
+    }
+
+    void onEncodedHit() {
+        encodedHits.incrementAndGet();
+    }
+
+    void onDiskHit() {
+        diskHits.incrementAndGet();
+    }
+
+    void onDecode() {
+        decodes.incrementAndGet();
+    }
+
+    void onWastedDecode() {
+        wastedDecodes.incrementAndGet();
+    }
+
+    void onDisplayed() {
+        displayed.incrementAndGet();
+        firstDisplayNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    void onCacheSize(long bytes) {
+        long peak = peakCacheBytes.get();
+        while(bytes > peak && !peakCacheBytes.compareAndSet(peak, bytes)){
+            peak = peakCacheBytes.get();
+        }
+    }
+}
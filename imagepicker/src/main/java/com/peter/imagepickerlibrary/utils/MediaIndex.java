@@ -0,0 +1,515 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.MediaStore;
+
+import com.peter.imagepickerlibrary.model.FolderModel;
+import com.peter.imagepickerlibrary.model.ImageInfo;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the images MediaStore knows, in columns of primitive arrays instead of a String or a FolderModel per item
+ *
+ * Images are grouped by folder, and by file name within a folder, so a folder is a range of rows
+ * Each folder path is stored once, in the directory table
+ * File names are UTF-8 bytes in one shared arena, each row only has its offset
+ * The rest are int columns: MediaStore id, size, date modified, width and height (0 before Jelly Bean, MediaStore has no such columns)
+ * That is about 24 bytes per image plus its name, against a few hundred for a path String in a list
+ *
+ * getFolders and getFileNames are views over the columns, for ListDirPopupWindow and ImageAdapter,
+ * their items are only created when a row is bound
+ * Give it to ImageLoader.setMediaIndex and the loader takes the image sizes from it, see getKnownSize there
+ *
+ * Read only once built, so it can be shared between threads
+ */
+public class MediaIndex implements MetadataSource {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // directory table
+    private String[] dirs;
+    private int[] dirStarts;            // first row of each folder
+    private int[] dirCounts;
+    private int[] dirLatest;            // newest date modified in the folder, seconds
+    private int[] dirCovers;            // row of the newest image, the folder's cover
+    private Map<String, Integer> dirIndex;
+
+    // image rows
+    private byte[] nameArena;
+    private int[] nameOffsets;          // count + 1, the name of row i is [nameOffsets[i], nameOffsets[i + 1])
+    private int[] ids;
+    private int[] sizes;
+    private int[] dates;                // date modified, seconds
+    private int[] widths;
+    private int[] heights;
+
+    private MediaIndex() {
+    }
+
+    /**
+     * Query all the jpeg and png images, call it off the main thread
+     * Folders are in the order their oldest image was added, like the MediaStore scan this replaces
+     * @param resolver
+     * @return MediaIndex, null if MediaStore isn't available
+     */
+    public static MediaIndex fromMediaStore(ContentResolver resolver) {
+        // WIDTH and HEIGHT are API 16, asking for them before that fails the whole query
+        boolean hasDimensions = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        String[] projection = hasDimensions
+                ? new String[]{MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA, MediaStore.Images.Media.SIZE,
+                        MediaStore.Images.Media.DATE_MODIFIED, MediaStore.Images.Media.WIDTH, MediaStore.Images.Media.HEIGHT}
+                : new String[]{MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA, MediaStore.Images.Media.SIZE,
+                        MediaStore.Images.Media.DATE_MODIFIED};
+        Cursor cursor = resolver.query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                projection,
+                MediaStore.Images.Media.MIME_TYPE + " = ? or " + MediaStore.Images.Media.MIME_TYPE + " = ? ",
+                new String[]{"image/jpeg", "image/png"},
+                MediaStore.Images.Media.DATE_MODIFIED);
+        if(cursor == null){
+            return null;
+        }
+
+        Builder builder = new Builder(cursor.getCount());
+        try {
+            // -1 if the provider still doesn't have them, getInt(-1) would throw
+            int widthColumn = hasDimensions ? cursor.getColumnIndex(MediaStore.Images.Media.WIDTH) : -1;
+            int heightColumn = hasDimensions ? cursor.getColumnIndex(MediaStore.Images.Media.HEIGHT) : -1;
+            while(cursor.moveToNext()){
+                String path = cursor.getString(1);
+                if(path == null){
+                    continue;
+                }
+                int date = (int) cursor.getLong(3);
+                int width = widthColumn >= 0 ? cursor.getInt(widthColumn) : 0;
+                int height = heightColumn >= 0 ? cursor.getInt(heightColumn) : 0;
+                builder.add(path, cursor.getInt(0), (int) Math.min(Integer.MAX_VALUE, cursor.getLong(2)), date, width, height);
+            }
+        } finally {
+            cursor.close();
+        }
+        return builder.build();
+    }
+
+    public int getImageCount() {
+        return ids.length;
+    }
+
+    public int getFolderCount() {
+        return dirs.length;
+    }
+
+    /**
+     * @param dir full path of a directory
+     * @return folder number, -1 if MediaStore has no images there
+     */
+    public int indexOfFolder(String dir) {
+        Integer folder = dirIndex.get(dir);
+        return folder != null ? folder : -1;
+    }
+
+    public String getFolderDir(int folder) {
+        return dirs[folder];
+    }
+
+    public int getFolderImageCount(int folder) {
+        return dirCounts[folder];
+    }
+
+    /**
+     * @param folder
+     * @return date modified of the newest image, in seconds
+     */
+    public int getFolderLatestDate(int folder) {
+        return dirLatest[folder];
+    }
+
+    /**
+     * @param folder
+     * @return full path of the newest image
+     */
+    public String getFolderCoverPath(int folder) {
+        return getPath(dirCovers[folder]);
+    }
+
+    /**
+     * @return folder with the most images, -1 if there are none
+     */
+    public int getLargestFolder() {
+        int largest = -1;
+        for(int i = 0; i < dirCounts.length; i++){
+            if(largest < 0 || dirCounts[i] > dirCounts[largest]){
+                largest = i;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @param folder
+     * @return row of the folder's first image, its images are the next getFolderImageCount rows
+     */
+    public int getFolderStart(int folder) {
+        return dirStarts[folder];
+    }
+
+    /**
+     * @param row
+     * @return file name of the image, decoded from the arena
+     */
+    public String getFileName(int row) {
+        return new String(nameArena, nameOffsets[row], nameOffsets[row + 1] - nameOffsets[row], UTF_8);
+    }
+
+    /**
+     * @param row
+     * @return full path of the image
+     */
+    public String getPath(int row) {
+        return dirs[folderOf(row)] + "/" + getFileName(row);
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public int getSize(int row) {
+        return sizes[row];
+    }
+
+    /**
+     * @param row
+     * @return date modified, seconds
+     */
+    public int getDate(int row) {
+        return dates[row];
+    }
+
+    public int getWidth(int row) {
+        return widths[row];
+    }
+
+    public int getHeight(int row) {
+        return heights[row];
+    }
+
+    /**
+     * @param path full path of an image
+     * @return row, -1 if it isn't in the index
+     */
+    public int indexOfImage(String path) {
+        int slash = path.lastIndexOf('/');
+        if(slash < 0){
+            return -1;
+        }
+        int folder = indexOfFolder(path.substring(0, slash));
+        if(folder < 0){
+            return -1;
+        }
+        return indexOfImage(folder, path.substring(slash + 1));
+    }
+
+    /**
+     * @param folder
+     * @param fileName
+     * @return row, -1 if the folder has no such image in the index
+     */
+    public int indexOfImage(int folder, String fileName) {
+        byte[] name = fileName.getBytes(UTF_8);
+
+        // names are sorted within the folder
+        int low = dirStarts[folder];
+        int high = low + dirCounts[folder] - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = compareName(mid, name);
+            if(cmp < 0){
+                low = mid + 1;
+            }
+            else if(cmp > 0){
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Id, size and dimensions from the index, for SelectionResult
+     * Images found after the index was built (e.g. by FileSystemScanner) only get their size
+     * @param info
+     */
+    @Override
+    public void fill(ImageInfo info) {
+        int row = indexOfImage(info.getPath());
+        if(row < 0){
+            info.setSize(new File(info.getPath()).length());
+            return;
+        }
+        info.setId(ids[row]);
+        info.setSize(sizes[row]);
+        info.setWidth(widths[row]);
+        info.setHeight(heights[row]);
+    }
+
+    /**
+     * @return the folders, as FolderModels made when they are asked for
+     */
+    public List<FolderModel> getFolders() {
+        return new AbstractList<FolderModel>() {
+            @Override
+            public FolderModel get(int folder) {
+                FolderModel model = new FolderModel();
+                model.setDir(dirs[folder]);
+                model.setFirstImgPath(getFolderCoverPath(folder));
+                model.setImgCount(dirCounts[folder]);
+                return model;
+            }
+
+            @Override
+            public int size() {
+                return dirs.length;
+            }
+        };
+    }
+
+    /**
+     * @param folder
+     * @return file names of the folder's images, sorted, decoded when they are asked for
+     */
+    public List<String> getFileNames(final int folder) {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int position) {
+                return getFileName(dirStarts[folder] + position);
+            }
+
+            @Override
+            public int size() {
+                return dirCounts[folder];
+            }
+        };
+    }
+
+    private int folderOf(int row) {
+        int folder = Arrays.binarySearch(dirStarts, row);
+        if(folder < 0){
+            folder = -folder - 2;           // the folder starting before row, folders are never empty
+        }
+        return folder;
+    }
+
+    /**
+     * Unsigned byte order, the same the rows were sorted in
+     */
+    private int compareName(int row, byte[] name) {
+        int offset = nameOffsets[row];
+        int length = nameOffsets[row + 1] - offset;
+        int n = Math.min(length, name.length);
+        for(int i = 0; i < n; i++){
+            int a = nameArena[offset + i] & 0xFF;
+            int b = name[i] & 0xFF;
+            if(a != b){
+                return a - b;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Collects the rows in cursor order, then groups them by folder and sorts them by name
+     * Package private for the tests, which build an index without MediaStore
+     */
+    static class Builder {
+        private List<String> dirs = new ArrayList<String>();
+        private Map<String, Integer> dirIndex = new HashMap<String, Integer>();
+
+        private int count;
+        private int[] rowDirs;
+        private int[] ids;
+        private int[] sizes;
+        private int[] dates;
+        private int[] widths;
+        private int[] heights;
+        private int[] nameOffsets;
+        private byte[] nameArena;
+        private int arenaLength;
+
+        Builder(int capacity) {
+            capacity = Math.max(16, capacity);
+            rowDirs = new int[capacity];
+            ids = new int[capacity];
+            sizes = new int[capacity];
+            dates = new int[capacity];
+            widths = new int[capacity];
+            heights = new int[capacity];
+            nameOffsets = new int[capacity];
+            nameArena = new byte[capacity * 16];
+        }
+
+        void add(String path, int id, int size, int date, int width, int height) {
+            int slash = path.lastIndexOf('/');
+            if(slash <= 0 || slash == path.length() - 1){
+                return;
+            }
+            String dir = path.substring(0, slash);
+            Integer dirNumber = dirIndex.get(dir);
+            if(dirNumber == null){
+                dirNumber = dirs.size();
+                dirs.add(dir);
+                dirIndex.put(dir, dirNumber);
+            }
+            byte[] name = path.substring(slash + 1).getBytes(UTF_8);
+
+            if(count == ids.length){
+                int capacity = count * 2;
+                rowDirs = Arrays.copyOf(rowDirs, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                dates = Arrays.copyOf(dates, capacity);
+                widths = Arrays.copyOf(widths, capacity);
+                heights = Arrays.copyOf(heights, capacity);
+                nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+            }
+            if(arenaLength + name.length > nameArena.length){
+                nameArena = Arrays.copyOf(nameArena, Math.max(nameArena.length * 2, arenaLength + name.length));
+            }
+
+            rowDirs[count] = dirNumber;
+            ids[count] = id;
+            sizes[count] = size;
+            dates[count] = date;
+            widths[count] = width;
+            heights[count] = height;
+            nameOffsets[count] = arenaLength;
+            System.arraycopy(name, 0, nameArena, arenaLength, name.length);
+            arenaLength += name.length;
+            count++;
+        }
+
+        MediaIndex build() {
+            int dirCount = dirs.size();
+            MediaIndex index = new MediaIndex();
+            index.dirs = dirs.toArray(new String[dirCount]);
+            index.dirIndex = dirIndex;
+            index.dirCounts = new int[dirCount];
+            index.dirStarts = new int[dirCount];
+            index.dirLatest = new int[dirCount];
+            index.dirCovers = new int[dirCount];
+
+            // counting sort by folder
+            for(int row = 0; row < count; row++){
+                index.dirCounts[rowDirs[row]]++;
+            }
+            int[] next = new int[dirCount];
+            for(int dir = 0, start = 0; dir < dirCount; dir++){
+                index.dirStarts[dir] = start;
+                next[dir] = start;
+                start += index.dirCounts[dir];
+            }
+            int[] order = new int[count];
+            for(int row = 0; row < count; row++){
+                order[next[rowDirs[row]]++] = row;
+            }
+
+            // then by name within each folder, the row numbers themselves are sorted, nothing is boxed
+            int[] scratch = new int[count];
+            for(int dir = 0; dir < dirCount; dir++){
+                sortByName(order, scratch, index.dirStarts[dir], index.dirStarts[dir] + index.dirCounts[dir]);
+            }
+
+            // lay the columns out in that order
+            index.ids = new int[count];
+            index.sizes = new int[count];
+            index.dates = new int[count];
+            index.widths = new int[count];
+            index.heights = new int[count];
+            index.nameOffsets = new int[count + 1];
+            index.nameArena = new byte[arenaLength];
+            int offset = 0;
+            for(int i = 0; i < count; i++){
+                int row = order[i];
+                index.ids[i] = ids[row];
+                index.sizes[i] = sizes[row];
+                index.dates[i] = dates[row];
+                index.widths[i] = widths[row];
+                index.heights[i] = heights[row];
+                int length = nameLength(row);
+                System.arraycopy(nameArena, nameOffsets[row], index.nameArena, offset, length);
+                index.nameOffsets[i] = offset;
+                offset += length;
+
+                int dir = rowDirs[row];
+                if(i == index.dirStarts[dir] || dates[row] > index.dirLatest[dir]){
+                    index.dirLatest[dir] = dates[row];
+                    index.dirCovers[dir] = i;
+                }
+            }
+            index.nameOffsets[count] = offset;
+            return index;
+        }
+
+        /**
+         * Merge sort of rows[from, to) by name
+         * @param rows
+         * @param scratch as long as rows
+         * @param from
+         * @param to
+         */
+        private void sortByName(int[] rows, int[] scratch, int from, int to) {
+            if(to - from < 2){
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            sortByName(rows, scratch, from, mid);
+            sortByName(rows, scratch, mid, to);
+            if(compareNames(rows[mid - 1], rows[mid]) <= 0){
+                return;             // already in order, e.g. camera names in the order they were taken
+            }
+            System.arraycopy(rows, from, scratch, from, to - from);
+            int i = from;
+            int j = mid;
+            int k = from;
+            while(i < mid && j < to){
+                rows[k++] = compareNames(scratch[j], scratch[i]) < 0 ? scratch[j++] : scratch[i++];
+            }
+            while(i < mid){
+                rows[k++] = scratch[i++];
+            }
+            while(j < to){
+                rows[k++] = scratch[j++];
+            }
+        }
+
+        private int nameLength(int row) {
+            return (row + 1 < count ? nameOffsets[row + 1] : arenaLength) - nameOffsets[row];
+        }
+
+        private int compareNames(int a, int b) {
+            int offsetA = nameOffsets[a];
+            int offsetB = nameOffsets[b];
+            int lengthA = nameLength(a);
+            int lengthB = nameLength(b);
+            int n = Math.min(lengthA, lengthB);
+            for(int i = 0; i < n; i++){
+                int x = nameArena[offsetA + i] & 0xFF;
+                int y = nameArena[offsetB + i] & 0xFF;
+                if(x != y){
+                    return x - y;
+                }
+            }
+            return lengthA - lengthB;
+        }
+    }
+}
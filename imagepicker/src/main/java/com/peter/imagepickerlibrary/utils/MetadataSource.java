@@ -0,0 +1,16 @@
+package com.peter.imagepickerlibrary.utils;
+
+import com.peter.imagepickerlibrary.model.ImageInfo;
+
+/**
+ * Where SelectionResult gets the id, size and dimensions of the picked images,
+ * so they come from what the picker has already indexed instead of another query
+ */
+public interface MetadataSource {
+    /**
+     * Fill in what's known about the image, leave the rest
+     * Called off the UI thread
+     * @param info has the path set
+     */
+    void fill(ImageInfo info);
+}
@@ -0,0 +1,132 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed ring of reusable read buffers, for the encoded bytes travelling from the I/O stage to the decode stage of ImageLoader
+ *
+ * There are only so many buffers: when they are all in flight, acquire blocks the reader,
+ * which is what keeps the I/O stage from running ahead of the decoders
+ * Buffers grow to the biggest file read with them and are kept at that size, all of them together, free or in flight,
+ * stay within maxBytes: to grow one, free buffers are dropped (the biggest first), or else acquire waits for one to be released
+ *
+ * They are heap arrays and not direct buffers, as BitmapFactory only decodes from byte[] or streams
+ */
+class ReadBufferPool {
+    private LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+    private Semaphore available;
+    private int maxBytes;
+    private long allocatedBytes;            // all the buffers, free and in flight
+
+    /**
+     * @param count buffers in the ring
+     * @param maxBytes of all the buffers together, the biggest file that can be read into one
+     */
+    ReadBufferPool(int count, int maxBytes) {
+        this.maxBytes = maxBytes;
+        available = new Semaphore(count);
+        for(int i = 0; i < count; i++){
+            freeBuffers.add(new byte[0]);           // allocated on first use, at the size needed
+        }
+    }
+
+    /**
+     * @return biggest buffer acquire can hand out
+     */
+    int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return bytes of all the buffers, free and in flight, never more than getMaxBytes
+     */
+    synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Blocks until a buffer is free, and until there are bytes enough for it in the budget
+     * @param minLength at most getMaxBytes
+     * @return buffer at least minLength long, has to be released
+     * @throws OutOfMemoryError if a bigger buffer can't be allocated, nothing has to be released then
+     */
+    byte[] acquire(int minLength) {
+        available.acquireUninterruptibly();
+        int length;
+        synchronized (this){
+            byte[] buffer = takeBestFit(minLength);
+            if(buffer.length >= minLength){
+                return buffer;
+            }
+            allocatedBytes -= buffer.length;                        // replaced by a bigger one
+            length = (int) Math.min(maxBytes, minLength + (long) minLength / 4);   // some room, files in a folder have similar sizes
+            boolean interrupted = false;
+            while(allocatedBytes + length > maxBytes){
+                if(!dropBiggestFree()){
+                    try {
+                        wait();                                     // the buffers in flight hold the budget, until one is released
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+            allocatedBytes += length;
+        }
+        try {
+            return new byte[length];
+        } catch (OutOfMemoryError e) {
+            synchronized (this){
+                allocatedBytes -= length;
+            }
+            release(new byte[0]);                                   // or the ring loses a slot for good
+            throw e;
+        }
+    }
+
+    void release(byte[] buffer) {
+        synchronized (this){
+            freeBuffers.addLast(buffer);
+            notifyAll();
+        }
+        available.release();
+    }
+
+    /**
+     * @return the smallest free buffer of at least minLength, or else the biggest one
+     */
+    private byte[] takeBestFit(int minLength) {
+        byte[] best = null;
+        for(byte[] buffer : freeBuffers){
+            if(best == null
+                    || (buffer.length >= minLength && (best.length < minLength || buffer.length < best.length))
+                    || (buffer.length < minLength && best.length < minLength && buffer.length > best.length)){
+                best = buffer;
+            }
+        }
+        freeBuffers.remove(best);
+        return best;
+    }
+
+    /**
+     * Give the bytes of the biggest free buffer back to the budget, the slot stays
+     * @return false if no free buffer holds any
+     */
+    private boolean dropBiggestFree() {
+        int biggest = -1;
+        for(int i = 0; i < freeBuffers.size(); i++){
+            if(freeBuffers.get(i).length > 0 && (biggest < 0 || freeBuffers.get(i).length > freeBuffers.get(biggest).length)){
+                biggest = i;
+            }
+        }
+        if(biggest < 0){
+            return false;
+        }
+        allocatedBytes -= freeBuffers.get(biggest).length;
+        freeBuffers.set(biggest, new byte[0]);
+        return true;
+    }
+}
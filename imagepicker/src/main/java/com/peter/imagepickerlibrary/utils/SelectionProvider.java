@@ -0,0 +1,73 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+/**
+ * Serves the selection files SelectionResult writes, read only, to the app the result was sent to
+ * Not exported, the app only gets to read the Uri it was granted
+ */
+public class SelectionProvider extends ContentProvider {
+    private static final String AUTHORITY_SUFFIX = ".imagepicker.selection";   // see the library's AndroidManifest.xml
+
+    /**
+     * @param context
+     * @return authority, unique per app using the library
+     */
+    static String getAuthority(Context context) {
+        return context.getPackageName() + AUTHORITY_SUFFIX;
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if(!"r".equals(mode)){
+            throw new FileNotFoundException("Read only: " + uri);
+        }
+        String name = uri.getLastPathSegment();
+        if(name == null || name.contains("/") || name.startsWith(".")){      // nothing outside the selections directory
+            throw new FileNotFoundException(String.valueOf(uri));
+        }
+        File file = new File(SelectionResult.getDir(getContext()), name);
+        if(!file.isFile()){
+            throw new FileNotFoundException(String.valueOf(uri));
+        }
+        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Read only");
+    }
+}
@@ -0,0 +1,337 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+import com.peter.imagepickerlibrary.model.ImageInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hands the picked images to the host app, however many there are
+ *
+ * An Intent goes through Binder, which fails with TransactionTooLargeException past about 1 MB,
+ * so only selections up to INLINE_LIMIT are put in the extras
+ * Bigger ones are written to a file in the cache and the Intent only carries a content:// Uri of SelectionProvider,
+ * readable by the app that gets the result
+ *
+ * The host reads both the same way, with read, one image at a time
+ *
+ * File format: magic, version, count, then for each image (sorted by path)
+ * the length of the prefix shared with the previous path, the rest of the path, id, size, width and height
+ * Images in a folder share most of their path, so a path takes little more than its file name
+ */
+public class SelectionResult {
+    public static final int INLINE_LIMIT = 500;
+
+    private static final String EXTRA_COUNT = "com.peter.imagepickerlibrary.selection.COUNT";
+    private static final String EXTRA_PATHS = "com.peter.imagepickerlibrary.selection.PATHS";
+    private static final String EXTRA_IDS = "com.peter.imagepickerlibrary.selection.IDS";
+    private static final String EXTRA_SIZES = "com.peter.imagepickerlibrary.selection.SIZES";
+    private static final String EXTRA_WIDTHS = "com.peter.imagepickerlibrary.selection.WIDTHS";
+    private static final String EXTRA_HEIGHTS = "com.peter.imagepickerlibrary.selection.HEIGHTS";
+
+    private static final String DIR_NAME = "selections";
+    private static final int MAGIC = 0x49505331;            // "IPS1"
+    private static final int VERSION = 1;
+    private static final long MAX_FILE_AGE = 24 * 60 * 60 * 1000;     // the host has had a day to read it
+
+    /**
+     * Build the result Intent, writes a file for big selections so call it off the UI thread
+     * @param context
+     * @param paths full paths of the picked images, e.g. ImageAdapter.getSelectedImages()
+     * @param metadata where the ids, sizes and dimensions come from, see defaultMetadata
+     * @return Intent for setResult
+     * @throws IOException if the file can't be written
+     */
+    public static Intent toIntent(Context context, Collection<String> paths, MetadataSource metadata) throws IOException {
+        List<String> sorted = new ArrayList<String>(paths);
+        Collections.sort(sorted);           // images of a folder next to each other, for the shared prefixes
+        int count = sorted.size();
+
+        Intent intent = new Intent();
+        intent.putExtra(EXTRA_COUNT, count);
+        if(count <= INLINE_LIMIT){
+            String[] pathArray = new String[count];
+            long[] ids = new long[count];
+            long[] sizes = new long[count];
+            int[] widths = new int[count];
+            int[] heights = new int[count];
+            ImageInfo info = new ImageInfo();
+            for(int i = 0; i < count; i++){
+                describe(sorted.get(i), metadata, info);
+                pathArray[i] = info.getPath();
+                ids[i] = info.getId();
+                sizes[i] = info.getSize();
+                widths[i] = info.getWidth();
+                heights[i] = info.getHeight();
+            }
+            intent.putExtra(EXTRA_PATHS, pathArray);
+            intent.putExtra(EXTRA_IDS, ids);
+            intent.putExtra(EXTRA_SIZES, sizes);
+            intent.putExtra(EXTRA_WIDTHS, widths);
+            intent.putExtra(EXTRA_HEIGHTS, heights);
+            return intent;
+        }
+
+        File file = writeFile(context, sorted, metadata);
+        Uri uri = new Uri.Builder()
+                .scheme("content")
+                .authority(SelectionProvider.getAuthority(context))
+                .appendPath(file.getName())
+                .build();
+        intent.setData(uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return intent;
+    }
+
+    /**
+     * Open the result the picker sent back, in onActivityResult
+     * Nothing but the count is read yet, images are read one by one with Reader.next
+     * @param context
+     * @param data the Intent from onActivityResult
+     * @return Reader, to be closed
+     * @throws IOException if the file is gone or isn't a selection
+     */
+    public static Reader read(Context context, Intent data) throws IOException {
+        Uri uri = data.getData();
+        if(uri == null){
+            return new InlineReader(data);
+        }
+
+        InputStream in = context.getContentResolver().openInputStream(uri);
+        if(in == null){
+            throw new IOException("Cannot open " + uri);
+        }
+        return new StreamReader(new DataInputStream(new BufferedInputStream(in)));
+    }
+
+    /**
+     * Metadata from the file and the DimensionCache, for pickers without a MediaStore index
+     * Images get no id
+     * @param dimensions from ImageLoader.getDimensionCache, may be null
+     * @return MetadataSource
+     */
+    public static MetadataSource defaultMetadata(final DimensionCache dimensions) {
+        return new MetadataSource() {
+            @Override
+            public void fill(ImageInfo info) {
+                File file = new File(info.getPath());
+                info.setSize(file.length());
+                int[] size = new int[2];
+                if(dimensions != null && dimensions.get(info.getPath(), file.lastModified(), size)){
+                    info.setWidth(size[0]);
+                    info.setHeight(size[1]);
+                }
+            }
+        };
+    }
+
+    /**
+     * @param context
+     * @return where the selection files are, SelectionProvider serves files from here only
+     */
+    static File getDir(Context context) {
+        return new File(context.getCacheDir(), DIR_NAME);
+    }
+
+    private static void describe(String path, MetadataSource metadata, ImageInfo info) {
+        info.setPath(path);
+        info.setId(-1);
+        info.setSize(0);
+        info.setWidth(0);
+        info.setHeight(0);
+        if(metadata != null){
+            metadata.fill(info);
+        }
+    }
+
+    private static File writeFile(Context context, List<String> sorted, MetadataSource metadata) throws IOException {
+        File dir = getDir(context);
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Cannot create " + dir);
+        }
+        deleteOldFiles(dir);
+
+        File file = new File(dir, "selection-" + System.currentTimeMillis() + ".bin");
+        File tmp = new File(dir, file.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+
+            ImageInfo info = new ImageInfo();
+            String previous = "";
+            for(String path : sorted){
+                describe(path, metadata, info);
+                int shared = sharedPrefixLength(previous, path);
+                out.writeShort(shared);
+                out.writeUTF(path.substring(shared));
+                out.writeLong(info.getId());
+                out.writeLong(info.getSize());
+                out.writeInt(info.getWidth());
+                out.writeInt(info.getHeight());
+                previous = path;
+            }
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file)){
+                throw new IOException("Cannot rename " + tmp);
+            }
+            return file;
+        } finally {
+            if(out != null){
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private static int sharedPrefixLength(String a, String b) {
+        int max = Math.min(Math.min(a.length(), b.length()), 0xFFFF);
+        int i = 0;
+        while(i < max && a.charAt(i) == b.charAt(i)){
+            i++;
+        }
+        return i;
+    }
+
+    private static void deleteOldFiles(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for(File file : files){
+            if(now - file.lastModified() > MAX_FILE_AGE){
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * The picked images, in path order
+     */
+    public static abstract class Reader implements Closeable {
+        /**
+         * @return number of picked images
+         */
+        public abstract int getCount();
+
+        /**
+         * Read the next image into info, so one ImageInfo can be reused for the whole selection
+         * @param info
+         * @return false when there are no more
+         * @throws IOException
+         */
+        public abstract boolean next(ImageInfo info) throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private static class InlineReader extends Reader {
+        private int count;
+        private String[] paths;
+        private long[] ids;
+        private long[] sizes;
+        private int[] widths;
+        private int[] heights;
+        private int position;
+
+        InlineReader(Intent data) {
+            paths = data.getStringArrayExtra(EXTRA_PATHS);
+            ids = data.getLongArrayExtra(EXTRA_IDS);
+            sizes = data.getLongArrayExtra(EXTRA_SIZES);
+            widths = data.getIntArrayExtra(EXTRA_WIDTHS);
+            heights = data.getIntArrayExtra(EXTRA_HEIGHTS);
+            count = paths != null ? paths.length : 0;
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean next(ImageInfo info) {
+            if(position >= count){
+                return false;
+            }
+            info.setPath(paths[position]);
+            info.setId(ids[position]);
+            info.setSize(sizes[position]);
+            info.setWidth(widths[position]);
+            info.setHeight(heights[position]);
+            position++;
+            return true;
+        }
+    }
+
+    private static class StreamReader extends Reader {
+        private DataInputStream in;
+        private int count;
+        private int position;
+        private String previous = "";
+
+        StreamReader(DataInputStream in) throws IOException {
+            this.in = in;
+            try {
+                if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                    throw new IOException("Not a selection file");
+                }
+                count = in.readInt();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean next(ImageInfo info) throws IOException {
+            if(position >= count){
+                return false;
+            }
+            int shared = in.readUnsignedShort();
+            String path = previous.substring(0, shared) + in.readUTF();
+            info.setPath(path);
+            info.setId(in.readLong());
+            info.setSize(in.readLong());
+            info.setWidth(in.readInt());
+            info.setHeight(in.readInt());
+            previous = path;
+            position++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,667 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache of thumbnails, one pack file per directory and size bucket instead of one file per thumbnail
+ *
+ * A pack is a header followed by records appended one after another:
+ *   header: int magic, int version, UTF-8 directory path (short length + bytes)
+ *   record: UTF-8 file name (short length + bytes), long last modified, int data length, encoded thumbnail
+ * The offsets of the records are indexed in memory when the pack is opened, and thumbnails are decoded straight
+ * from the memory mapped file, so reading a screen of thumbnails is one open and no copies
+ * Records appended since the file was mapped are read with a positional read, the file isn't mapped again for them
+ *
+ * A record whose file was modified since is dropped from the index, and superseded records are dead space;
+ * once there is more dead space than live data the pack is compacted in the background
+ *
+ * There is never more than one Pack for a file: a pack closed to make room stays closed, and whoever still
+ * holds it gets it again from getPack; its index is kept for a while, so reopening doesn't read the file again
+ * Packs are named by the hash of their directory, directories whose hashes collide get name_1, name_2, ...
+ */
+public class ThumbnailPackStore {
+    private static final int MAGIC = 0x54504B31;            // "TPK1"
+    private static final int VERSION = 1;
+    private static final int MIN_BUCKET = 64;
+    private static final int MAX_OPEN_PACKS = 8;            // file descriptors and mappings kept at a time
+    private static final int MAX_KEPT_INDEXES = 64;         // indexes of closed packs, e.g. the timeline goes through many folders
+    private static final int MIN_COMPACT_BYTES = 64 * 1024;
+    private static final int QUALITY = 80;
+    private static final int MAX_PENDING_WRITES = 32;       // encoded thumbnails waiting for writeThread, later ones are dropped
+
+    // root path -> the store of the process, see getShared
+    private static final Map<String, ThumbnailPackStore> sharedStores = new HashMap<String, ThumbnailPackStore>();
+
+    private File rootDir;
+    private ThreadPoolExecutor writeThread;                  // appends and compacts, off the decode workers
+
+    // access order, so the least recently used pack is closed first
+    private LinkedHashMap<String, Pack> openPacks = new LinkedHashMap<String, Pack>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pack> eldest) {
+            if(size() > MAX_OPEN_PACKS){
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // file path -> index of a closed pack, its own lock as packs take it while holding theirs
+    private Map<String, Index> keptIndexes = Collections.synchronizedMap(new LinkedHashMap<String, Index>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Index> eldest) {
+            return size() > MAX_KEPT_INDEXES;
+        }
+    });
+
+    public ThumbnailPackStore(File rootDir) {
+        this.rootDir = rootDir;
+        rootDir.mkdirs();
+        // only bytes are queued, and not many: a fling can't pile up work outside the cache budgets
+        writeThread = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(){
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * The store of the app's thumbnails, one per directory in the process, so ImageLoader and ThumbnailPregenerator
+     * never have two stores appending to the same pack
+     * @param cacheDir e.g. context.getCacheDir(), the packs go in its "thumbnails" directory
+     * @return ThumbnailPackStore
+     */
+    static ThumbnailPackStore getShared(File cacheDir) {
+        File rootDir = new File(cacheDir, "thumbnails");
+        synchronized (sharedStores){
+            ThumbnailPackStore store = sharedStores.get(rootDir.getAbsolutePath());
+            if(store == null){
+                store = new ThumbnailPackStore(rootDir);
+                sharedStores.put(rootDir.getAbsolutePath(), store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Thumbnails requested at similar sizes share a pack, the bucket is the longer side rounded up to a power of 2
+     * @param width
+     * @param height
+     * @return bucket
+     */
+    public static int getSizeBucket(int width, int height) {
+        int bucket = MIN_BUCKET;
+        while(bucket < Math.max(width, height)){
+            bucket *= 2;
+        }
+        return bucket;
+    }
+
+    /**
+     * @param path full path of the original image
+     * @param bucket see getSizeBucket
+     * @return thumbnail, null if it's not in the pack or the image has changed since
+     */
+    public Bitmap get(String path, int bucket) {
+        ByteBuffer data = getEncoded(path, bucket);
+        if(data == null){
+            return null;
+        }
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(data));
+    }
+
+    /**
+     * The encoded thumbnail, to be decoded somewhere else
+     * @param path full path of the original image
+     * @param bucket see getSizeBucket
+     * @return read only slice of the mapped pack, null if it's not in the pack or the image has changed since
+     */
+    public ByteBuffer getEncoded(String path, int bucket) {
+        File file = new File(path);
+        long lastModified = file.lastModified();
+        Pack pack;
+        ByteBuffer data;
+        do {
+            pack = getPack(file.getParent(), bucket);
+            data = pack.find(file.getName(), lastModified);
+        } while(data == null && pack.isClosed());       // closed to make room meanwhile, get the one open now
+        return data;
+    }
+
+    /**
+     * Compress the thumbnail on the calling thread and append it to its pack in the background
+     * Dropped if too many are waiting to be written, it's only a cache
+     * @param path full path of the original image
+     * @param bucket see getSizeBucket
+     * @param bitmap can be recycled once this returns
+     * @return the encoded thumbnail, not to be modified, null if it couldn't be compressed
+     */
+    public byte[] put(final String path, final int bucket, Bitmap bitmap) {
+        final byte[] data = compress(bitmap);
+        if(data == null){
+            return null;
+        }
+        final long lastModified = new File(path).lastModified();
+        writeThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeEncoded(path, bucket, lastModified, data);
+            }
+        });
+        return data;
+    }
+
+    /**
+     * Same as put, but written on the calling thread, for background work that paces itself
+     * @param path full path of the original image
+     * @param bucket see getSizeBucket
+     * @param bitmap can be recycled once this returns
+     * @return bytes written, -1 if it couldn't be compressed
+     */
+    public int putNow(String path, int bucket, Bitmap bitmap) {
+        byte[] data = compress(bitmap);
+        if(data == null){
+            return -1;
+        }
+        writeEncoded(path, bucket, new File(path).lastModified(), data);
+        return data.length;
+    }
+
+    /**
+     * Encoded as the packs keep it, also for ImageLoader's memory tier when there is no disk cache
+     * @param bitmap
+     * @return the encoded thumbnail, null if it couldn't be compressed
+     */
+    static byte[] compress(Bitmap bitmap) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        if(!bitmap.compress(getCompressFormat(), QUALITY, out)){
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Append an encoded thumbnail to its pack, on the calling thread
+     * @param path full path of the original image
+     * @param bucket see getSizeBucket
+     * @param lastModified of the original when it was decoded
+     * @param data
+     */
+    void writeEncoded(String path, int bucket, long lastModified, byte[] data) {
+        File file = new File(path);
+        Pack pack;
+        do {
+            pack = getPack(file.getParent(), bucket);
+        } while(!pack.append(file.getName(), lastModified, data));
+        compactIfNeeded(pack);
+    }
+
+    /**
+     * @return bytes taken by all the packs on disk
+     */
+    public long getTotalSize() {
+        long total = 0;
+        File[] files = rootDir.listFiles();
+        if(files != null){
+            for(File file : files){
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    private static Bitmap.CompressFormat getCompressFormat() {
+        // WebP is smaller, but only from ICS on
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+    }
+
+    private synchronized Pack getPack(String dir, int bucket) {
+        String key = bucket + ":" + dir;
+        Pack pack = openPacks.get(key);
+        if(pack == null){
+            pack = new Pack(getPackFile(dir, bucket), dir);
+            openPacks.put(key, pack);
+        }
+        return pack;
+    }
+
+    /**
+     * The hash of the path keeps the name short; when another directory's pack already has the name,
+     * the first of name_1, name_2, ... that's free or holds this directory is taken
+     * Called with the store locked, so no other open pack can claim the file meanwhile
+     * @param dir
+     * @param bucket
+     * @return pack file of the directory
+     */
+    private File getPackFile(String dir, int bucket) {
+        String base = Integer.toHexString(dir.hashCode()) + "_" + bucket;
+        for(int i = 0; ; i++){
+            File file = new File(rootDir, (i == 0 ? base : base + "_" + i) + ".pack");
+            String owner = null;
+            for(Pack open : openPacks.values()){
+                if(open.file.equals(file)){
+                    owner = open.dir;
+                    break;
+                }
+            }
+            if(owner == null){
+                owner = readHeaderDir(file);
+            }
+            if(owner == null || owner.equals(dir)){
+                return file;
+            }
+        }
+    }
+
+    /**
+     * @param file
+     * @return directory in the header of the pack, null if there's no file or it's not a pack
+     */
+    private static String readHeaderDir(File file) {
+        if(file.length() < 10){
+            return null;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                return null;
+            }
+            int dirLength = in.readShort();
+            if(dirLength < 0 || dirLength > in.length() - 10){
+                return null;
+            }
+            byte[] dirBytes = new byte[dirLength];
+            in.readFully(dirBytes);
+            return decode(ByteBuffer.wrap(dirBytes), dirLength);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void compactIfNeeded(final Pack pack) {
+        if(pack.needsCompaction()){
+            writeThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    pack.compact();
+                }
+            });
+        }
+    }
+
+    private static byte[] encode(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);      // UTF-8 is always there
+        }
+    }
+
+    private static String decode(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * One pack file, opened lazily and closed when too many packs are open
+     * All methods lock the pack, but decoding is done outside the lock on a slice of the mapping
+     * Once closed it stays closed, so two Packs can't write the same file
+     */
+    private class Pack {
+        private File file;
+        private String dir;
+        private boolean closed;
+
+        private RandomAccessFile randomAccessFile;
+        private FileChannel channel;
+        private MappedByteBuffer mapped;        // may be shorter than the file after appends, mapped again only when opened or compacted
+        private long size;
+
+        private Map<String, Entry> index = new HashMap<String, Entry>();
+        private long liveBytes;
+        private long deadBytes;
+
+        Pack(File file, String dir) {
+            this.file = file;
+            this.dir = dir;
+        }
+
+        /**
+         * @param name
+         * @param lastModified
+         * @return slice of the mapping, null if it's not there or the pack is closed
+         */
+        synchronized ByteBuffer find(String name, long lastModified) {
+            if(!ensureOpen()){
+                return null;
+            }
+            Entry entry = index.get(name);
+            if(entry == null){
+                return null;
+            }
+            if(entry.lastModified != lastModified){         // the image was edited or replaced, the thumbnail is stale
+                index.remove(name);
+                liveBytes -= entry.length;
+                deadBytes += entry.length;
+                compactIfNeeded(this);
+                return null;
+            }
+
+            try {
+                if(mapped == null){             // after taking a kept index, or a new header
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                if(entry.offset + entry.length > mapped.capacity()){
+                    // appended since it was mapped, one read instead of mapping the whole file again
+                    ByteBuffer copy = ByteBuffer.allocate(entry.length);
+                    while(copy.hasRemaining()){
+                        if(channel.read(copy, entry.offset + copy.position()) < 0){
+                            return null;
+                        }
+                    }
+                    copy.flip();
+                    return copy;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            ByteBuffer data = mapped.duplicate();
+            data.position((int) entry.offset);
+            data.limit((int) (entry.offset + entry.length));
+            return data.slice();
+        }
+
+        /**
+         * @param name
+         * @param lastModified
+         * @param data
+         * @return false if the pack is closed, to be appended to the one from getPack, true otherwise (also if it failed)
+         */
+        synchronized boolean append(String name, long lastModified, byte[] data) {
+            if(closed){
+                return false;
+            }
+            if(!ensureOpen()){
+                return true;
+            }
+            byte[] nameBytes = encode(name);
+            ByteBuffer record = ByteBuffer.allocate(2 + nameBytes.length + 8 + 4 + data.length);
+            record.putShort((short) nameBytes.length);
+            record.put(nameBytes);
+            record.putLong(lastModified);
+            record.putInt(data.length);
+            record.put(data);
+            record.flip();
+
+            long dataOffset = size + record.limit() - data.length;
+            try {
+                while(record.hasRemaining()){
+                    channel.write(record, size + record.position());
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return true;
+            }
+            size += record.limit();
+
+            Entry old = index.put(name, new Entry(dataOffset, data.length, lastModified));
+            liveBytes += data.length;
+            if(old != null){
+                liveBytes -= old.length;
+                deadBytes += old.length;
+            }
+            return true;
+        }
+
+        synchronized boolean needsCompaction() {
+            return deadBytes > MIN_COMPACT_BYTES && deadBytes > liveBytes;
+        }
+
+        /**
+         * Copy the live records into a new file and swap it in
+         * Buffers already handed out by find stay valid, they keep the old mapping alive
+         */
+        synchronized void compact() {
+            if(!ensureOpen() || !needsCompaction()){
+                return;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            tmp.delete();               // left over by a compaction that was killed
+            Pack compacted = new Pack(tmp, dir);
+            try {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                for(Map.Entry<String, Entry> e : index.entrySet()){
+                    Entry entry = e.getValue();
+                    byte[] data = new byte[entry.length];
+                    ByteBuffer source = mapped.duplicate();
+                    source.position((int) entry.offset);
+                    source.get(data);
+                    compacted.append(e.getKey(), entry.lastModified, data);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                compacted.closeFile();
+                tmp.delete();
+                return;
+            }
+            compacted.closeFile();
+
+            closeFile();                // opened again from the new file on the next call
+            if(!tmp.renameTo(file)){
+                tmp.delete();
+            }
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * For good, the index is kept for the next Pack of the file
+         */
+        synchronized void close() {
+            if(closed){
+                return;
+            }
+            closed = true;
+            if(channel != null){
+                keptIndexes.put(file.getPath(), new Index(size, index, liveBytes, deadBytes));
+                index = new HashMap<String, Entry>();
+            }
+            closeFile();
+        }
+
+        private void closeFile() {
+            if(randomAccessFile != null){
+                try {
+                    randomAccessFile.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            randomAccessFile = null;
+            channel = null;
+            mapped = null;
+            index.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+        }
+
+        /**
+         * Open the file and read its index, a new pack gets its header
+         * @return false if the pack can't be used
+         */
+        private boolean ensureOpen() {
+            if(closed){
+                return false;
+            }
+            if(channel != null){
+                return true;
+            }
+            try {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                channel = randomAccessFile.getChannel();
+                size = channel.size();
+                Index kept = keptIndexes.remove(file.getPath());
+                if(kept != null && kept.size == size && size > 0){      // nothing has written to it since
+                    index = kept.entries;
+                    liveBytes = kept.liveBytes;
+                    deadBytes = kept.deadBytes;
+                }
+                else if(size == 0 || !readIndex()){
+                    if(size > 0 && readHeaderDir(file) != null){
+                        // another directory's, e.g. named by another store; truncating it would pull it from under its mapping
+                        closeFile();
+                        return false;
+                    }
+                    writeHeader();
+                }
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeFile();
+                return false;
+            }
+        }
+
+        private void writeHeader() throws IOException {
+            byte[] dirBytes = encode(dir);
+            ByteBuffer header = ByteBuffer.allocate(4 + 4 + 2 + dirBytes.length);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putShort((short) dirBytes.length);
+            header.put(dirBytes);
+            header.flip();
+
+            channel.truncate(0);
+            while(header.hasRemaining()){
+                channel.write(header, header.position());
+            }
+            size = header.limit();
+            mapped = null;
+            index.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+        }
+
+        /**
+         * Walk the record headers, a record cut off by a crash is truncated
+         * @return false if it's not a pack of this directory
+         */
+        private boolean readIndex() throws IOException {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(size < 10 || mapped.getInt() != MAGIC || mapped.getInt() != VERSION){
+                return false;
+            }
+            int dirLength = mapped.getShort();
+            if(dirLength > mapped.remaining() || !dir.equals(decode(mapped, dirLength))){
+                return false;
+            }
+
+            while(mapped.remaining() >= 2){
+                int recordStart = mapped.position();
+                int nameLength = mapped.getShort();
+                if(nameLength < 0 || mapped.remaining() < nameLength + 8 + 4){
+                    truncate(recordStart);
+                    break;
+                }
+                String name = decode(mapped, nameLength);
+                long lastModified = mapped.getLong();
+                int length = mapped.getInt();
+                if(length < 0 || mapped.remaining() < length){
+                    truncate(recordStart);
+                    break;
+                }
+
+                Entry old = index.put(name, new Entry(mapped.position(), length, lastModified));
+                liveBytes += length;
+                if(old != null){
+                    liveBytes -= old.length;
+                    deadBytes += old.length;
+                }
+                mapped.position(mapped.position() + length);
+            }
+            return true;
+        }
+
+        private void truncate(long newSize) throws IOException {
+            channel.truncate(newSize);
+            size = newSize;
+            mapped = null;
+        }
+    }
+
+    /**
+     * What a closed pack knew about its file
+     */
+    private static class Index {
+        final long size;
+        final Map<String, Entry> entries;
+        final long liveBytes;
+        final long deadBytes;
+
+        Index(long size, Map<String, Entry> entries, long liveBytes, long deadBytes) {
+            this.size = size;
+            this.entries = entries;
+            this.liveBytes = liveBytes;
+            this.deadBytes = deadBytes;
+        }
+    }
+
+    private static class Entry {
+        final long offset;          // of the encoded thumbnail, not of the record
+        final int length;
+        final long lastModified;
+
+        Entry(long offset, int length, long lastModified) {
+            this.offset = offset;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+}
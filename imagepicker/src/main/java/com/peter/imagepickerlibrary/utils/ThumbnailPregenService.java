@@ -0,0 +1,40 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * The job ThumbnailPregenerator.schedule sets up, runs the pregenerator on its own thread
+ * When the device stops being idle or charging the job is stopped and rescheduled, and resumes from the saved progress
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class ThumbnailPregenService extends JobService {
+    private ThumbnailPregenerator pregenerator;
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final ThumbnailPregenerator running = new ThumbnailPregenerator(getApplicationContext());
+        pregenerator = running;
+        new Thread(){
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                if(running.run()){
+                    jobFinished(params, false);
+                }
+            }
+        }.start();
+        return true;            // still working, on the thread
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if(pregenerator != null){
+            pregenerator.cancel();
+        }
+        return true;            // reschedule, for the rest
+    }
+}
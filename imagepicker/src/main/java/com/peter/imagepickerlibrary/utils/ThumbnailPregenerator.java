@@ -0,0 +1,232 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Fills the thumbnail packs ahead of time while the device is idle and charging,
+ * so that even the first time a big folder is opened its cells come from the disk cache instead of the originals
+ *
+ * Folders are done largest first, and the most recently modified first among folders of the same size,
+ * at the size the grid asks for (see schedule)
+ * One image at a time at background priority, with a pause after each one
+ * Progress is saved, so a job stopped by the system or killed with the process goes on where it was
+ * Stops adding once the packs take budgetBytes on disk
+ *
+ * Runs as a JobScheduler job (ThumbnailPregenService), so only on Lollipop and up, schedule does nothing before
+ */
+public class ThumbnailPregenerator {
+    public static final long DEFAULT_BUDGET_BYTES = 64 * 1024 * 1024;
+
+    private static final int JOB_ID = 0x1D1E;
+    private static final long THROTTLE_MILLIS = 30;         // pause after each decode, the device is idle but it's not ours
+    private static final int SAVE_EVERY = 20;               // images between saves of the progress
+
+    private static final String PREFS_NAME = "imagepicker_pregen";
+    private static final String KEY_CELL_WIDTH = "cell_width";
+    private static final String KEY_CELL_HEIGHT = "cell_height";
+    private static final String KEY_BUDGET = "budget";
+    private static final String KEY_DIR = "dir";                // folder being done, and how far it got
+    private static final String KEY_POSITION = "position";
+    private static final String KEY_DONE_DATE = "done_date";    // newest image of the last complete pass, seconds
+
+    private Context context;
+    private volatile boolean cancelled;
+
+    ThumbnailPregenerator(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Schedule the job for the next time the device is idle and charging, does nothing before Lollipop
+     * Call it every time the picker has scanned, the job picks up new images since its last pass
+     * @param context
+     * @param cellWidth width of a grid cell in pixels, as ImageLoader sees the ImageView
+     * @param cellHeight
+     */
+    public static void schedule(Context context, int cellWidth, int cellHeight) {
+        schedule(context, cellWidth, cellHeight, DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * @param context
+     * @param cellWidth width of a grid cell in pixels, as ImageLoader sees the ImageView
+     * @param cellHeight
+     * @param budgetBytes disk space all the thumbnail packs may take, the loader's own thumbnails included
+     */
+    public static void schedule(Context context, int cellWidth, int cellHeight, long budgetBytes) {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP){
+            return;
+        }
+
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putInt(KEY_CELL_WIDTH, cellWidth)
+                .putInt(KEY_CELL_HEIGHT, cellHeight)
+                .putLong(KEY_BUDGET, budgetBytes)
+                .apply();
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, ThumbnailPregenService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .build();
+        scheduler.schedule(job);        // replaces the pending one
+    }
+
+    /**
+     * Stop after the current image, the progress is saved
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Do the work, on a background thread
+     * @return true if there's nothing left to do (or no room for it), false if cancelled
+     */
+    boolean run() {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final int cellWidth = prefs.getInt(KEY_CELL_WIDTH, 0);
+        final int cellHeight = prefs.getInt(KEY_CELL_HEIGHT, 0);
+        long budget = prefs.getLong(KEY_BUDGET, DEFAULT_BUDGET_BYTES);
+        if(cellWidth <= 0 || cellHeight <= 0){
+            return true;
+        }
+
+        // the store ImageLoader uses too, without starting the loader and its threads
+        ThumbnailPackStore store = ThumbnailPackStore.getShared(context.getCacheDir());
+        long used = store.getTotalSize();
+        if(used >= budget){
+            return true;
+        }
+
+        final MediaIndex index = MediaIndex.fromMediaStore(context.getContentResolver());
+        if(index == null){
+            return true;
+        }
+
+        Integer[] folders = new Integer[index.getFolderCount()];
+        for(int i = 0; i < folders.length; i++){
+            folders[i] = i;
+        }
+        Arrays.sort(folders, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int bySize = index.getFolderImageCount(b) - index.getFolderImageCount(a);
+                return bySize != 0 ? bySize : index.getFolderLatestDate(b) - index.getFolderLatestDate(a);
+            }
+        });
+
+        int bucket = ThumbnailPackStore.getSizeBucket(cellWidth, cellHeight);
+        DecodePolicy decodePolicy = new DecodePolicy(cellWidth * cellHeight * 16L, null);
+        int doneDate = prefs.getInt(KEY_DONE_DATE, 0);
+        String resumeDir = prefs.getString(KEY_DIR, null);
+        int resumePosition = prefs.getInt(KEY_POSITION, 0);
+        int newest = 0;
+
+        for(int folder : folders){
+            newest = Math.max(newest, index.getFolderLatestDate(folder));
+        }
+
+        for(int folder : folders){
+            if(index.getFolderLatestDate(folder) <= doneDate){
+                continue;           // nothing new there since the last complete pass
+            }
+            String dir = index.getFolderDir(folder);
+            int start = index.getFolderStart(folder);
+            int count = index.getFolderImageCount(folder);
+
+            for(int position = dir.equals(resumeDir) ? resumePosition : 0; position < count; position++){
+                if(cancelled || used >= budget){
+                    saveProgress(prefs, dir, position);
+                    return !cancelled;
+                }
+                if(position % SAVE_EVERY == 0){
+                    saveProgress(prefs, dir, position);
+                }
+
+                String path = index.getPath(start + position);
+                if(store.getEncoded(path, bucket) != null){
+                    continue;       // the loader has been there
+                }
+                Bitmap bm = decode(decodePolicy, path, index.getWidth(start + position), index.getHeight(start + position), cellWidth, cellHeight);
+                if(bm != null){
+                    int written = store.putNow(path, bucket, bm);
+                    if(written > 0){
+                        used += written;
+                    }
+                    bm.recycle();
+                }
+
+                try {
+                    Thread.sleep(THROTTLE_MILLIS);
+                } catch (InterruptedException e) {
+                    cancelled = true;
+                }
+            }
+        }
+
+        prefs.edit()
+                .remove(KEY_DIR)
+                .remove(KEY_POSITION)
+                .putInt(KEY_DONE_DATE, newest)
+                .apply();
+        return true;
+    }
+
+    private static void saveProgress(SharedPreferences prefs, String dir, int position) {
+        prefs.edit()
+                .putString(KEY_DIR, dir)
+                .putInt(KEY_POSITION, position)
+                .apply();
+    }
+
+    /**
+     * Decoded at the sample size ImageLoader would use for the cell, so the loader finds it under the same bucket
+     * @param decodePolicy
+     * @param path
+     * @param width from MediaStore, 0 if unknown
+     * @param height
+     * @param cellWidth
+     * @param cellHeight
+     * @return bitmap, null if it can't be decoded
+     */
+    private static Bitmap decode(DecodePolicy decodePolicy, final String path, int width, int height, int cellWidth, int cellHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if(width > 0 && height > 0){
+            options.outWidth = width;
+            options.outHeight = height;
+        }
+        else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            if(options.outWidth <= 0 || options.outHeight <= 0){
+                return null;
+            }
+        }
+
+        options.inSampleSize = ImageLoader.calculateInSampleSize(options, cellWidth, cellHeight);
+
+        try {
+            return decodePolicy.decode(options, new DecodePolicy.Source() {
+                @Override
+                public Bitmap decode(BitmapFactory.Options options, int attempt) {
+                    return BitmapFactory.decodeFile(path, options);
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
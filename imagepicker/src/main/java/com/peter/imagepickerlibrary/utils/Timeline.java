@@ -0,0 +1,232 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Virtual folder of all the images in every directory, newest first
+ *
+ * Read from one MediaStore cursor sorted by date, so the merge across directories is done by the media database
+ * The paths are copied out in the same pass as the dates, in columns like MediaIndex's: each directory once,
+ * a directory number per row and the file names as UTF-8 bytes in one arena, so binding a cell never moves a cursor
+ * The day boundaries are kept as int positions, for the date headers and seeking to a date
+ *
+ * Has to be created off the main thread, read only once built
+ */
+public class Timeline {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // date taken is empty for images without EXIF, fall back to date modified (seconds, not milliseconds)
+    private static final String DATE = "COALESCE(" + MediaStore.Images.Media.DATE_TAKEN + ", " + MediaStore.Images.Media.DATE_MODIFIED + " * 1000)";
+
+    private int count;
+    private String[] dirs;                  // each directory once
+    private int[] rowDirs;                  // directory of each image
+    private byte[] nameArena;
+    private int[] nameOffsets;              // count + 1, the name of image i is [nameOffsets[i], nameOffsets[i + 1])
+
+    private int[] sectionStarts;            // position of the first image of each day
+    private int[] sectionDays;              // days since epoch (local time) of each section, descending
+    private String[] sectionLabels;
+
+    private Timeline() {
+    }
+
+    /**
+     * Query all the jpeg and png images, sorted by date
+     * @param resolver
+     * @return Timeline, null if MediaStore isn't available
+     */
+    public static Timeline query(ContentResolver resolver) {
+        Cursor cursor = resolver.query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_TAKEN, MediaStore.Images.Media.DATE_MODIFIED},
+                MediaStore.Images.Media.MIME_TYPE + " = ? or " + MediaStore.Images.Media.MIME_TYPE + " = ? ",
+                new String[]{"image/jpeg", "image/png"},
+                DATE + " DESC");
+        if(cursor == null){
+            return null;
+        }
+        return fromCursor(cursor);
+    }
+
+    /**
+     * Package private for the tests, which read from a cursor of their own
+     * @param cursor with the path and both dates, newest first, closed once read
+     * @return Timeline
+     */
+    static Timeline fromCursor(Cursor cursor) {
+        Timeline timeline = new Timeline();
+        try {
+            timeline.read(cursor);
+        } finally {
+            cursor.close();
+        }
+        return timeline;
+    }
+
+    /**
+     * One pass over the cursor, the only pass that touches every row: paths and day boundaries
+     * @param cursor
+     */
+    private void read(Cursor cursor) {
+        int pathColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATA);
+        int takenColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_TAKEN);
+        int modifiedColumn = cursor.getColumnIndex(MediaStore.Images.Media.DATE_MODIFIED);
+        count = cursor.getCount();
+
+        Map<String, Integer> dirIndex = new HashMap<String, Integer>();
+        String[] dirTable = new String[16];
+        rowDirs = new int[count];
+        nameOffsets = new int[count + 1];
+        byte[] arena = new byte[Math.max(16, count * 16)];
+        int arenaSize = 0;
+
+        int[] starts = new int[16];
+        int[] days = new int[16];
+        int sections = 0;
+
+        TimeZone timeZone = TimeZone.getDefault();
+        int lastDay = Integer.MIN_VALUE;
+        for(int position = 0; position < count; position++){
+            cursor.moveToPosition(position);
+            String path = cursor.getString(pathColumn);
+            int slash = path != null ? path.lastIndexOf('/') : -1;
+            String dir = slash >= 0 ? path.substring(0, slash) : "";
+            Integer dirNumber = dirIndex.get(dir);
+            if(dirNumber == null){
+                dirNumber = dirIndex.size();
+                if(dirNumber == dirTable.length){
+                    dirTable = Arrays.copyOf(dirTable, dirNumber * 2);
+                }
+                dirTable[dirNumber] = dir;
+                dirIndex.put(dir, dirNumber);
+            }
+            rowDirs[position] = dirNumber;
+            byte[] name = (path != null ? path.substring(slash + 1) : "").getBytes(UTF_8);
+            if(arenaSize + name.length > arena.length){
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + name.length));
+            }
+            System.arraycopy(name, 0, arena, arenaSize, name.length);
+            arenaSize += name.length;
+            nameOffsets[position + 1] = arenaSize;
+
+            long date = cursor.isNull(takenColumn) ? cursor.getLong(modifiedColumn) * 1000 : cursor.getLong(takenColumn);
+            int day = (int) ((date + timeZone.getOffset(date)) / DAY);
+            if(day != lastDay){
+                if(sections == starts.length){
+                    starts = Arrays.copyOf(starts, sections * 2);
+                    days = Arrays.copyOf(days, sections * 2);
+                }
+                starts[sections] = position;
+                days[sections] = day;
+                sections++;
+                lastDay = day;
+            }
+        }
+
+        dirs = Arrays.copyOf(dirTable, dirIndex.size());
+        nameArena = Arrays.copyOf(arena, arenaSize);
+        sectionStarts = Arrays.copyOf(starts, sections);
+        sectionDays = Arrays.copyOf(days, sections);
+
+        DateFormat format = DateFormat.getDateInstance(DateFormat.MEDIUM);
+        sectionLabels = new String[sections];
+        for(int i = 0; i < sections; i++){
+            long utc = sectionDays[i] * DAY;
+            sectionLabels[i] = format.format(new Date(utc - timeZone.getOffset(utc)));
+        }
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Full path of the image, from the columns, from any thread
+     * @param position
+     * @return String
+     */
+    public String getPath(int position) {
+        String name = new String(nameArena, nameOffsets[position], nameOffsets[position + 1] - nameOffsets[position], UTF_8);
+        return dirs[rowDirs[position]] + "/" + name;
+    }
+
+    public String[] getSectionLabels() {
+        return sectionLabels;
+    }
+
+    public int getSectionStart(int section) {
+        if(sectionStarts.length == 0){
+            return 0;
+        }
+        return sectionStarts[Math.max(0, Math.min(section, sectionStarts.length - 1))];
+    }
+
+    /**
+     * Binary search over the day boundaries
+     * @param position
+     * @return section the position belongs to
+     */
+    public int getSectionForPosition(int position) {
+        int index = Arrays.binarySearch(sectionStarts, position);
+        if(index < 0){
+            index = -index - 2;         // the section starting before the position
+        }
+        return Math.max(0, index);
+    }
+
+    /**
+     * @param position
+     * @return true if the image is the newest of its day, that's where the date header goes
+     */
+    public boolean isSectionStart(int position) {
+        return Arrays.binarySearch(sectionStarts, position) >= 0;
+    }
+
+    /**
+     * Position of the newest image taken on or before the date
+     * @param millis
+     * @return position, the last one if everything is newer
+     */
+    public int getPositionForDate(long millis) {
+        int day = (int) ((millis + TimeZone.getDefault().getOffset(millis)) / DAY);
+        // sectionDays is descending, find the first section not after the day
+        int low = 0;
+        int high = sectionDays.length;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(sectionDays[mid] > day){
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        if(low == sectionDays.length){
+            return Math.max(0, getCount() - 1);
+        }
+        return sectionStarts[low];
+    }
+
+    /**
+     * The cursor is closed once read, this only lets go of the columns
+     */
+    public void close() {
+        count = 0;
+        dirs = new String[0];
+        rowDirs = new int[0];
+        nameArena = new byte[0];
+        nameOffsets = new int[1];
+    }
+}
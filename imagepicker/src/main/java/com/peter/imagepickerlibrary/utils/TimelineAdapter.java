@@ -0,0 +1,157 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.util.DisplayMetrics;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.widget.BaseAdapter;
+import android.widget.ImageButton;
+import android.widget.ImageView;
+import android.widget.SectionIndexer;
+import android.widget.TextView;
+
+import com.peter.imagepickerlibrary.R;
+
+/**
+ * Grid adapter of the "All images" virtual folder, see Timeline
+ * The first image of every day carries the date, and the fast scroller shows it while dragging
+ * Shares the selection with ImageAdapter
+ */
+public class TimelineAdapter extends BaseAdapter implements SectionIndexer {
+    private Timeline timeline;
+    private LoadScope loadScope;        // null if the loads aren't cancelled with the screen
+    private LayoutInflater inflater;
+
+    private int screenWidth;
+
+    public TimelineAdapter(Context context, Timeline timeline) {
+        this.timeline = timeline;
+        this.inflater = LayoutInflater.from(context);
+
+        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        DisplayMetrics windowMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getMetrics(windowMetrics);
+        screenWidth = windowMetrics.widthPixels;
+    }
+
+    /**
+     * Load the images in a scope, cancelled when the screen goes away
+     * @param loadScope
+     */
+    public void setLoadScope(LoadScope loadScope) {
+        this.loadScope = loadScope;
+    }
+
+    @Override
+    public int getCount() {
+        return timeline.getCount();
+    }
+
+    /**
+     * Returns the full path of the image
+     * @param position
+     * @return String
+     */
+    @Override
+    public Object getItem(int position) {
+        return timeline.getPath(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        final ViewHolder viewHolder;
+
+        if(convertView == null){
+            convertView = inflater.inflate(R.layout.gridview_item, parent, false);
+
+            viewHolder = new ViewHolder();
+            viewHolder.imgView = (ImageView) convertView.findViewById(R.id.item_image);
+            viewHolder.imgButton = (ImageButton) convertView.findViewById(R.id.item_select);
+            viewHolder.dateHeader = (TextView) convertView.findViewById(R.id.item_date);
+
+            convertView.setTag(viewHolder);
+        }
+        else {
+            viewHolder = (ViewHolder) convertView.getTag();
+        }
+
+        final String filePath = timeline.getPath(position);
+
+        // Reset all states
+        viewHolder.imgView.setImageResource(R.drawable.picture_no);
+        showSelection(viewHolder, ImageAdapter.isSelected(filePath));
+
+        if(timeline.isSectionStart(position)){
+            viewHolder.dateHeader.setText(timeline.getSectionLabels()[timeline.getSectionForPosition(position)]);
+            viewHolder.dateHeader.setVisibility(View.VISIBLE);
+        }
+        else {
+            viewHolder.dateHeader.setVisibility(View.GONE);
+        }
+
+        // will have to change this if number of columns change
+        viewHolder.imgView.setMaxWidth(screenWidth / 3);
+
+        ImageLoader.getInstance(3, ImageLoader.Type.LIFO).loadImage(filePath, viewHolder.imgView, loadScope);
+
+        viewHolder.imgView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showSelection(viewHolder, ImageAdapter.toggleSelected(filePath));
+            }
+        });
+
+        return convertView;
+    }
+
+    private void showSelection(ViewHolder viewHolder, boolean selected) {
+        if(selected){
+            viewHolder.imgView.setColorFilter(Color.parseColor("#77000000"));
+            viewHolder.imgButton.setImageResource(R.drawable.picture_selected);
+        }
+        else {
+            viewHolder.imgView.setColorFilter(null);
+            viewHolder.imgButton.setImageResource(R.drawable.picture_unselected);
+        }
+    }
+
+    /**
+     * Jump to the newest image taken on or before the date
+     * @param millis
+     * @return position to pass to GridView.setSelection
+     */
+    public int getPositionForDate(long millis) {
+        return timeline.getPositionForDate(millis);
+    }
+
+    @Override
+    public Object[] getSections() {
+        return timeline.getSectionLabels();
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        return timeline.getSectionStart(sectionIndex);
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        return timeline.getSectionForPosition(position);
+    }
+
+    // to match gridview_item.xml layout, reduce findViewById operation
+    private class ViewHolder
+    {
+        ImageView imgView;
+        ImageButton imgButton;
+        TextView dateHeader;
+    }
+}
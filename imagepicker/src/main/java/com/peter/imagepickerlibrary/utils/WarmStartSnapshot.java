@@ -0,0 +1,105 @@
+package com.peter.imagepickerlibrary.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the memory cache held when the picker was last put away, to fill it again on the next launch
+ * The most recently used paths first, with the size bucket each was decoded for, and where the grid was scrolled to
+ *
+ * File: int version, UTF folder ("" if none), int position, int count, then per entry UTF path and int bucket
+ */
+class WarmStartSnapshot {
+    private static final int VERSION = 1;
+
+    String folder;              // folder the grid was showing, null if none
+    int position;               // first visible cell in it
+    List<String> paths = new ArrayList<String>();
+    List<Integer> buckets = new ArrayList<Integer>();
+
+    /**
+     * @param file
+     * @return snapshot, empty if there's none or it can't be read
+     */
+    static WarmStartSnapshot read(File file) {
+        WarmStartSnapshot snapshot = new WarmStartSnapshot();
+        if(!file.exists()){
+            return snapshot;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if(in.readInt() != VERSION){
+                return snapshot;
+            }
+            String folder = in.readUTF();
+            snapshot.folder = folder.length() > 0 ? folder : null;
+            snapshot.position = in.readInt();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                String path = in.readUTF();
+                snapshot.buckets.add(in.readInt());
+                snapshot.paths.add(path);
+            }
+        } catch (EOFException e) {
+            // cut off, keep what was read
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Write to a temporary file and rename, so a snapshot is never half written, call it off the UI thread
+     * @param file
+     */
+    void write(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(VERSION);
+            out.writeUTF(folder != null ? folder : "");
+            out.writeInt(position);
+            out.writeInt(paths.size());
+            for(int i = 0; i < paths.size(); i++){
+                out.writeUTF(paths.get(i));
+                out.writeInt(buckets.get(i));
+            }
+            out.close();
+            out = null;
+            if(!tmp.renameTo(file)){
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            if(out != null){
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.peter.imagepickerlibrary;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowBitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * BitmapFactory for the benchmark's fixture images, which have no pixels, only a header with their size:
+ *   "FIXTURE <width>x<height>\n", then zeros up to the file size
+ *
+ * Robolectric's own BitmapFactory finds sizes by file name, which can't work for the byte arrays the loader reads
+ * into its pooled buffers (their name is their whole content, stale bytes included), nor for its streams,
+ * so the size is read from the header for files, streams and byte arrays alike
+ * Anything else, e.g. the thumbnails the pack store wrote, goes to Robolectric's
+ */
+@Implements(BitmapFactory.class)
+public class FixtureBitmapFactory extends ShadowBitmapFactory {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String MAGIC = "FIXTURE ";
+    private static final int HEADER_LENGTH = 32;
+
+    /**
+     * @param width
+     * @param height
+     * @return the first bytes of a fixture file
+     */
+    static byte[] header(int width, int height) {
+        return (name(width, height) + "\n").getBytes(US_ASCII);
+    }
+
+    /**
+     * Call it before decoding, on the test thread, Robolectric's size hints aren't thread safe
+     * @param width
+     * @param height
+     */
+    static void provideSize(int width, int height) {
+        provideWidthAndHeightHints(name(width, height), width, height);
+    }
+
+    @Implementation
+    public static Bitmap decodeByteArray(byte[] data, int offset, int length, BitmapFactory.Options opts) {
+        String name = parseHeader(data, offset, Math.min(length, HEADER_LENGTH));
+        if(name == null){
+            return ShadowBitmapFactory.decodeByteArray(data, offset, length, opts);
+        }
+        return create(name, opts);
+    }
+
+    @Implementation
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, BitmapFactory.Options opts) {
+        if(!is.markSupported()){
+            is = new BufferedInputStream(is, HEADER_LENGTH);
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        int read = 0;
+        try {
+            is.mark(HEADER_LENGTH);
+            int n;
+            while(read < HEADER_LENGTH && (n = is.read(header, read, HEADER_LENGTH - read)) > 0){
+                read += n;
+            }
+            String name = parseHeader(header, 0, read);
+            if(name != null){
+                return create(name, opts);
+            }
+            is.reset();
+        } catch (IOException e) {
+            return null;
+        }
+        return ShadowBitmapFactory.decodeStream(is, outPadding, opts);
+    }
+
+    @Implementation
+    public static Bitmap decodeFile(String pathName, BitmapFactory.Options opts) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(pathName);
+            byte[] header = new byte[HEADER_LENGTH];
+            int read = 0;
+            int n;
+            while(read < HEADER_LENGTH && (n = in.read(header, read, HEADER_LENGTH - read)) > 0){
+                read += n;
+            }
+            String name = parseHeader(header, 0, read);
+            if(name != null){
+                return create(name, opts);
+            }
+        } catch (IOException e) {
+            // not a fixture, Robolectric's goes by the name
+        } finally {
+            if(in != null){
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return ShadowBitmapFactory.decodeFile(pathName, opts);
+    }
+
+    private static String name(int width, int height) {
+        return MAGIC + width + "x" + height;
+    }
+
+    /**
+     * @return the name the size was given under, null if it isn't a fixture header
+     */
+    private static String parseHeader(byte[] data, int offset, int length) {
+        String text = new String(data, offset, length, US_ASCII);
+        int end = text.indexOf('\n');
+        if(!text.startsWith(MAGIC) || end < 0){
+            return null;
+        }
+        return text.substring(0, end);
+    }
+}
@@ -0,0 +1,299 @@
+package com.peter.imagepickerlibrary;
+
+import android.provider.MediaStore;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import com.peter.imagepickerlibrary.utils.ImageGridAdapter;
+import com.peter.imagepickerlibrary.utils.ImageLoader;
+import com.peter.imagepickerlibrary.utils.LoaderStats;
+import com.peter.imagepickerlibrary.utils.MediaIndex;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.fakes.RoboCursor;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Scroll simulation over a synthetic media library, end to end from the media index to the ImageViews
+ *
+ * Skipped unless asked for, as it takes a while:
+ *   ./gradlew :imagepicker:testDebugUnitTest -Dbenchmark=true [-Dbenchmark.images=100000] [-Dbenchmark.folders=500]
+ * Results go to build/benchmark/scroll.json (or -Dbenchmark.output=...), one object per scroll pattern, to diff runs
+ *
+ * Files are sparse, so even a big library costs no disk space, each starts with a header holding its size,
+ * which FixtureBitmapFactory reads, since Robolectric's BitmapFactory doesn't read pixels
+ * The library's MediaStore rows are served to the content resolver, and the folders come from MediaIndex as in the picker
+ * The grid is a RecyclerView with ImageGridAdapter, as in the picker, scrolled by scrollBy every frame
+ * Frames are 16 ms of wall time, the main looper is run once per frame like Choreographer would
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, shadows = FixtureBitmapFactory.class)
+public class ScrollBenchmark {
+    private static final int COLUMNS = 3;
+    private static final int VISIBLE_ROWS = 6;
+    private static final int ROW_HEIGHT = 100;         // px per row, the scroll patterns are in px
+    private static final long FRAME_MILLIS = 16;
+    private static final long SETTLE_TIMEOUT_MILLIS = 10000;
+
+    // the columns MediaIndex asks MediaStore for, in its order
+    private static final String[] MEDIA_COLUMNS = {MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA, MediaStore.Images.Media.SIZE,
+            MediaStore.Images.Media.DATE_MODIFIED, MediaStore.Images.Media.WIDTH, MediaStore.Images.Media.HEIGHT};
+
+    private int imageCount;
+    private int folderCount;
+    private File root;
+    private File cacheDir;
+    private Object[][] mediaRows;                       // the library as MediaStore would have it, by date modified
+    private Random random = new Random(42);            // same library on every run
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        imageCount = Integer.getInteger("benchmark.images", 2000);
+        folderCount = Integer.getInteger("benchmark.folders", 50);
+        root = createTempDir("library");
+        cacheDir = createTempDir("cache");
+    }
+
+    @Test
+    public void scrollSession() throws Exception {
+        ImageLoader imageLoader = ImageLoader.getInstance(3, ImageLoader.Type.LIFO);
+        imageLoader.setDiskCacheDir(cacheDir);
+        generateLibrary();
+
+        // the picker's start: MediaStore query into the index, sizes handed to the loader, largest folder opened
+        RoboCursor cursor = new RoboCursor();
+        cursor.setColumnNames(Arrays.asList(MEDIA_COLUMNS));
+        cursor.setResults(mediaRows);
+        Shadows.shadowOf(RuntimeEnvironment.application.getContentResolver()).setCursor(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, cursor);
+        long indexStart = System.nanoTime();
+        MediaIndex index = MediaIndex.fromMediaStore(RuntimeEnvironment.application.getContentResolver());
+        long indexMillis = (System.nanoTime() - indexStart) / 1000000;
+        imageLoader.setMediaIndex(index);
+
+        int largest = index.getLargestFolder();
+        List<String> names = index.getFileNames(largest);
+        ImageGridAdapter adapter = new ImageGridAdapter(RuntimeEnvironment.application);
+        adapter.setImages(index.getFolderDir(largest), names);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"images\": ").append(imageCount).append(",\n");
+        json.append("  \"folders\": ").append(index.getFolderCount()).append(",\n");
+        json.append("  \"indexMillis\": ").append(indexMillis).append(",\n");
+        json.append("  \"largestFolderImages\": ").append(names.size()).append(",\n");
+        json.append("  \"patterns\": [\n");
+
+        int contentHeight = (names.size() + COLUMNS - 1) / COLUMNS * ROW_HEIGHT;
+        String[] patterns = {"open", "slow_scroll", "fling", "fling_back"};
+        for(int i = 0; i < patterns.length; i++){
+            int[] offsets = scrollOffsets(patterns[i], contentHeight);
+            json.append(runPattern(patterns[i], offsets, adapter, imageLoader.getStats()));
+            json.append(i < patterns.length - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+
+        writeResults(json.toString());
+    }
+
+    /**
+     * Scroll offsets (px from the top) for each frame
+     * @param pattern
+     * @param contentHeight
+     * @return int[]
+     */
+    private int[] scrollOffsets(String pattern, int contentHeight) {
+        int maxOffset = Math.max(0, contentHeight - VISIBLE_ROWS * ROW_HEIGHT);
+        List<Integer> offsets = new ArrayList<Integer>();
+        if("open".equals(pattern)){                         // first screen only
+            offsets.add(0);
+        }
+        else if("slow_scroll".equals(pattern)){             // a finger dragging, 2 rows per second
+            for(int offset = 0; offset <= Math.min(maxOffset, 40 * ROW_HEIGHT); offset += ROW_HEIGHT * 2 * FRAME_MILLIS / 1000 + 1){
+                offsets.add(offset);
+            }
+        }
+        else {                                              // fling with friction, downwards or back up
+            boolean back = "fling_back".equals(pattern);
+            double velocity = 12000;                        // px per second
+            double offset = back ? Math.min(maxOffset, 40 * ROW_HEIGHT) : 0;
+            while(velocity > 50){
+                offset += (back ? -velocity : velocity) * FRAME_MILLIS / 1000;
+                offset = Math.max(0, Math.min(maxOffset, offset));
+                offsets.add((int) offset);
+                velocity *= 0.96;
+            }
+        }
+
+        int[] result = new int[offsets.size()];
+        for(int i = 0; i < result.length; i++){
+            result[i] = offsets.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Scroll a fresh grid through the offsets, the RecyclerView binds and recycles the cells
+     * @return JSON object of the pattern's results
+     */
+    private String runPattern(String name, int[] offsets, ImageGridAdapter adapter, LoaderStats stats) throws InterruptedException {
+        final RecyclerView recyclerView = new RecyclerView(RuntimeEnvironment.application);
+        GridLayoutManager layoutManager = new GridLayoutManager(RuntimeEnvironment.application, COLUMNS);
+        recyclerView.setLayoutManager(layoutManager);
+        final Set<Integer> boundPositions = new HashSet<Integer>();
+        recyclerView.addOnChildAttachStateChangeListener(new RecyclerView.OnChildAttachStateChangeListener() {
+            @Override
+            public void onChildViewAttachedToWindow(View view) {
+                int position = recyclerView.getChildAdapterPosition(view);
+                if(position != RecyclerView.NO_POSITION){
+                    boundPositions.add(position);
+                }
+            }
+
+            @Override
+            public void onChildViewDetachedFromWindow(View view) {
+            }
+        });
+
+        stats.reset();
+        long start = System.nanoTime();
+
+        // straight to the first offset, scrolling there would bind every cell on the way
+        layoutManager.scrollToPositionWithOffset(offsets[0] / ROW_HEIGHT * COLUMNS, -(offsets[0] % ROW_HEIGHT));
+        recyclerView.setAdapter(adapter);
+        layout(recyclerView);
+        nextFrame();
+
+        int current = offsets[0];
+        for(int i = 1; i < offsets.length; i++){
+            recyclerView.scrollBy(0, offsets[i] - current);
+            current = offsets[i];
+            nextFrame();
+        }
+
+        // let the last screen finish loading
+        long settleStart = System.currentTimeMillis();
+        long lastDisplayed = -1;
+        while(System.currentTimeMillis() - settleStart < SETTLE_TIMEOUT_MILLIS){
+            nextFrame();
+            nextFrame();
+            if(stats.getDisplayed() == lastDisplayed){
+                break;
+            }
+            lastDisplayed = stats.getDisplayed();
+        }
+        long durationMillis = (System.nanoTime() - start) / 1000000;
+        recyclerView.setAdapter(null);          // the next pattern's grid has the adapter to itself
+
+        long firstDisplay = stats.getFirstDisplayNanos();
+        StringBuilder json = new StringBuilder();
+        json.append("    {\n");
+        json.append("      \"pattern\": \"").append(name).append("\",\n");
+        json.append("      \"frames\": ").append(offsets.length).append(",\n");
+        json.append("      \"durationMillis\": ").append(durationMillis).append(",\n");
+        json.append("      \"timeToFirstThumbnailMillis\": ").append(firstDisplay == 0 ? -1 : (firstDisplay - start) / 1000000).append(",\n");
+        json.append("      \"boundCells\": ").append(boundPositions.size()).append(",\n");
+        json.append("      \"requests\": ").append(stats.getRequests()).append(",\n");
+        json.append("      \"memoryHits\": ").append(stats.getMemoryHits()).append(",\n");
+        json.append("      \"diskHits\": ").append(stats.getDiskHits()).append(",\n");
+        json.append("      \"encodedHits\": ").append(stats.getEncodedHits()).append(",\n");
+        json.append("      \"decodes\": ").append(stats.getDecodes()).append(",\n");
+        json.append("      \"decodesPerVisibleCell\": ").append(boundPositions.isEmpty() ? 0 : stats.getDecodes() * 1.0 / boundPositions.size()).append(",\n");
+        json.append("      \"wastedDecodes\": ").append(stats.getWastedDecodes()).append(",\n");
+        json.append("      \"displayed\": ").append(stats.getDisplayed()).append(",\n");
+        json.append("      \"peakCacheBytes\": ").append(stats.getPeakCacheBytes()).append("\n");
+        json.append("    }");
+        return json.toString();
+    }
+
+    /**
+     * Measure and lay out the grid at the size of the visible rows, there's no window to do it
+     * @param recyclerView
+     */
+    private void layout(RecyclerView recyclerView) {
+        int width = COLUMNS * ROW_HEIGHT;
+        int height = VISIBLE_ROWS * ROW_HEIGHT;
+        recyclerView.measure(View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        recyclerView.layout(0, 0, width, height);
+    }
+
+    private void nextFrame() throws InterruptedException {
+        Thread.sleep(FRAME_MILLIS);
+        ShadowLooper.idleMainLooper();
+    }
+
+    /**
+     * Folders with uneven sizes (a few big ones like a camera roll), mixed jpg and png, 2 to 16 megapixels
+     * The size of each image is in its header, see FixtureBitmapFactory, the loader measures them like real files
+     * Each image also gets its MediaStore row, with a date modified matching the file so the loader trusts its size
+     */
+    private void generateLibrary() throws IOException {
+        mediaRows = new Object[imageCount][];
+        long firstDate = System.currentTimeMillis() / 1000 - imageCount;
+        File[] dirs = new File[folderCount];
+        for(int i = 0; i < folderCount; i++){
+            dirs[i] = new File(root, (i % 10) + "/folder" + i);     // some nesting, like real storage
+            dirs[i].mkdirs();
+        }
+
+        for(int i = 0; i < imageCount; i++){
+            // squared, so low folder numbers get most of the images
+            double r = random.nextDouble();
+            File dir = dirs[(int) (r * r * folderCount)];
+            boolean png = random.nextInt(5) == 0;
+            File file = new File(dir, String.format("IMG_%06d.%s", i, png ? "png" : "jpg"));
+
+            int width = 1600 + random.nextInt(3300);
+            int height = width * 3 / 4;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.write(FixtureBitmapFactory.header(width, height));
+            raf.setLength(200 * 1024 + random.nextInt(4 * 1024 * 1024));
+            raf.close();
+            FixtureBitmapFactory.provideSize(width, height);
+
+            long date = firstDate + i;
+            file.setLastModified(date * 1000);
+            mediaRows[i] = new Object[]{(long) i + 1, file.getPath(), file.length(), date, width, height};
+        }
+    }
+
+    private void writeResults(String json) throws IOException {
+        File output = new File(System.getProperty("benchmark.output", "build/benchmark/scroll.json"));
+        output.getAbsoluteFile().getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(output);
+        try {
+            writer.write(json);
+        } finally {
+            writer.close();
+        }
+        System.out.println(json);
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,90 @@
+package com.peter.imagepickerlibrary.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Radius queries find exactly what comparing against every hash finds
+ */
+public class BKTreeTest {
+    @Test
+    public void distance() {
+        assertEquals(0, BKTree.distance(0x1234L, 0x1234L));
+        assertEquals(1, BKTree.distance(0L, 1L));
+        assertEquals(64, BKTree.distance(0L, -1L));
+        assertEquals(2, BKTree.distance(Long.MIN_VALUE, 1L));
+    }
+
+    @Test
+    public void emptyTree() {
+        BKTree<String> tree = new BKTree<String>();
+        assertEquals(0, tree.size());
+        assertTrue(tree.query(0L, 64).isEmpty());
+    }
+
+    @Test
+    public void identicalHashesShareANode() {
+        BKTree<String> tree = new BKTree<String>();
+        tree.add(0xFFL, "a.jpg");
+        tree.add(0xFFL, "copy of a.jpg");
+        tree.add(0x1FFL, "b.jpg");
+        assertEquals(3, tree.size());
+        assertEquals(Arrays.asList("a.jpg", "copy of a.jpg"), sorted(tree.query(0xFFL, 0)));
+        assertEquals(Arrays.asList("a.jpg", "b.jpg", "copy of a.jpg"), sorted(tree.query(0xFFL, 1)));
+        assertEquals(Collections.singletonList("b.jpg"), tree.query(0x3FFL, 1));
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        // near duplicates are clustered: a few base hashes, each with copies a few bits away, and unrelated hashes
+        Random random = new Random(11);
+        long[] hashes = new long[2000];
+        for(int i = 0; i < hashes.length; i++){
+            if(i < 20 || random.nextInt(3) == 0){
+                hashes[i] = random.nextLong();
+            }
+            else {
+                hashes[i] = flipBits(hashes[random.nextInt(20)], random.nextInt(12), random);
+            }
+        }
+        BKTree<Integer> tree = new BKTree<Integer>();
+        for(int i = 0; i < hashes.length; i++){
+            tree.add(hashes[i], i);
+        }
+        assertEquals(hashes.length, tree.size());
+
+        for(int q = 0; q < 200; q++){
+            long query = q % 2 == 0 ? hashes[random.nextInt(hashes.length)] : flipBits(hashes[random.nextInt(20)], random.nextInt(8), random);
+            for(int maxDistance : new int[]{0, 1, 4, 10, 20, 64}){
+                List<Integer> expected = new ArrayList<Integer>();
+                for(int i = 0; i < hashes.length; i++){
+                    if(Long.bitCount(hashes[i] ^ query) <= maxDistance){
+                        expected.add(i);
+                    }
+                }
+                assertEquals("distance " + maxDistance, expected, sorted(tree.query(query, maxDistance)));
+            }
+        }
+    }
+
+    private static long flipBits(long hash, int bits, Random random) {
+        for(int i = 0; i < bits; i++){
+            hash ^= 1L << random.nextInt(64);
+        }
+        return hash;
+    }
+
+    private static <T extends Comparable<T>> List<T> sorted(List<T> list) {
+        List<T> copy = new ArrayList<T>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,141 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The sample size is fitted to the pixel budget, and each OutOfMemoryError takes the decode one rung down the ladder
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DecodePolicyTest {
+    private static final long MAX_PIXELS = 1000 * 1000;
+
+    private int outOfMemoryRuns;
+    private DecodePolicy policy = new DecodePolicy(MAX_PIXELS, new Runnable() {
+        @Override
+        public void run() {
+            outOfMemoryRuns++;
+        }
+    });
+
+    @Test
+    public void fitBudget() {
+        assertEquals(1, policy.fitBudget(1000, 1000, 1));           // exactly the budget
+        assertEquals(2, policy.fitBudget(1001, 1000, 1));
+        assertEquals(4, policy.fitBudget(4000, 3000, 1));           // 2000x1500 is still over
+        assertEquals(4, policy.fitBudget(4000, 3000, 4));           // already within, kept
+        assertEquals(8, policy.fitBudget(4000, 3000, 8));           // never lowered
+        assertEquals(2, policy.fitBudget(100000, 20, 1));           // a strip, by its pixels and not its longer side
+        assertEquals(3, policy.fitBudget(0, 3000, 3));              // size unknown
+        assertEquals(3, policy.fitBudget(4000, -1, 3));
+    }
+
+    @Test
+    public void firstAttemptAsPlanned() throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+        RecordingSource source = new RecordingSource(0, bitmap);
+        BitmapFactory.Options options = options(4000, 3000, 2);
+        options.inJustDecodeBounds = true;
+
+        assertSame(bitmap, policy.decode(options, source));
+        assertFalse(options.inJustDecodeBounds);
+        assertEquals(1, source.attempts.size());
+        assertEquals(4, (int) source.sampleSizes.get(0));          // raised to fit the budget before the first try
+        assertNull(source.configs.get(0));                          // the caller's config, untouched
+        assertEquals(0, outOfMemoryRuns);
+    }
+
+    @Test
+    public void ladder() throws IOException {
+        RecordingSource source = new RecordingSource(Integer.MAX_VALUE, null);
+        assertNull(policy.decode(options(800, 600, 2), source));
+
+        // as planned, RGB_565, then RGB_565 at twice and four times the sample size, then give up
+        assertEquals(4, source.attempts.size());
+        for(int attempt = 0; attempt < 4; attempt++){
+            assertEquals(attempt, (int) source.attempts.get(attempt));
+        }
+        assertNull(source.configs.get(0));
+        assertEquals(2, (int) source.sampleSizes.get(0));
+        assertEquals(Bitmap.Config.RGB_565, source.configs.get(1));
+        assertEquals(2, (int) source.sampleSizes.get(1));
+        assertEquals(Bitmap.Config.RGB_565, source.configs.get(2));
+        assertEquals(4, (int) source.sampleSizes.get(2));
+        assertEquals(Bitmap.Config.RGB_565, source.configs.get(3));
+        assertEquals(8, (int) source.sampleSizes.get(3));
+        assertEquals(4, outOfMemoryRuns);                           // caches evicted after every failure
+    }
+
+    @Test
+    public void stopsAtTheFirstRungThatFits() throws IOException {
+        Bitmap bitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
+        RecordingSource source = new RecordingSource(2, bitmap);
+        assertSame(bitmap, policy.decode(options(800, 600, 1), source));
+
+        assertEquals(3, source.attempts.size());
+        assertEquals(Bitmap.Config.RGB_565, source.configs.get(2));
+        assertEquals(2, (int) source.sampleSizes.get(2));
+        assertEquals(2, outOfMemoryRuns);
+    }
+
+    @Test
+    public void noOutOfMemoryCallback() throws IOException {
+        RecordingSource source = new RecordingSource(1, null);
+        assertNull(new DecodePolicy(MAX_PIXELS, null).decode(options(800, 600, 0), source));
+        assertEquals(2, source.attempts.size());
+        assertEquals(1, (int) source.sampleSizes.get(0));           // 0 is taken as 1
+    }
+
+    private static BitmapFactory.Options options(int width, int height, int inSampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        options.inSampleSize = inSampleSize;
+        return options;
+    }
+
+    /**
+     * Runs out of memory the first few times, then returns the bitmap
+     * Keeps the options of each attempt
+     */
+    private static class RecordingSource implements DecodePolicy.Source {
+        private int failures;
+        private Bitmap bitmap;
+        List<Integer> attempts = new ArrayList<Integer>();
+        List<Integer> sampleSizes = new ArrayList<Integer>();
+        List<Bitmap.Config> configs = new ArrayList<Bitmap.Config>();
+
+        RecordingSource(int failures, Bitmap bitmap) {
+            this.failures = failures;
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options, int attempt) {
+            attempts.add(attempt);
+            sampleSizes.add(options.inSampleSize);
+            configs.add(options.inPreferredConfig);
+            if(attempt < failures){
+                throw new OutOfMemoryError();
+            }
+            return bitmap;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.peter.imagepickerlibrary.utils;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+import com.peter.imagepickerlibrary.model.FolderModel;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the scan finds on disk, and how it's put together with MediaStore's images, image by image
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class FileSystemScannerTest {
+    private static final String CAMERA = "/sdcard/DCIM/Camera";
+
+    private MediaIndex index;
+
+    @Before
+    public void setUp() {
+        MediaIndex.Builder builder = new MediaIndex.Builder(0);
+        builder.add(CAMERA + "/IMG_3.jpg", 3, 300, 30, 0, 0);
+        builder.add(CAMERA + "/IMG_1.jpg", 1, 100, 10, 0, 0);
+        builder.add(CAMERA + "/IMG_2.jpg", 2, 200, 20, 0, 0);
+        builder.add("/sdcard/Pictures/a.png", 4, 400, 40, 0, 0);
+        index = builder.build();
+    }
+
+    @Test
+    public void sameImagesKeepTheIndexList() {
+        List<String> merged = FileSystemScanner.merge(index, CAMERA, Arrays.asList("IMG_2.jpg", "IMG_3.jpg", "IMG_1.jpg"));
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_2.jpg", "IMG_3.jpg"), merged);
+        assertFalse(merged instanceof ArrayList);           // the index's own view, names aren't copied
+    }
+
+    @Test
+    public void unindexedImagesAreAdded() {
+        // just copied over, MediaStore hasn't scanned it
+        List<String> merged = FileSystemScanner.merge(index, CAMERA, Arrays.asList("IMG_3.jpg", "IMG_1.jpg", "IMG_0.jpg", "IMG_2.jpg"));
+        assertEquals(Arrays.asList("IMG_0.jpg", "IMG_1.jpg", "IMG_2.jpg", "IMG_3.jpg"), merged);
+    }
+
+    @Test
+    public void deletedImagesAreDropped() {
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_3.jpg"),
+                FileSystemScanner.merge(index, CAMERA, Arrays.asList("IMG_3.jpg", "IMG_1.jpg")));
+        // as many as the index has, but not the same ones
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_3.jpg", "IMG_4.jpg"),
+                FileSystemScanner.merge(index, CAMERA, Arrays.asList("IMG_4.jpg", "IMG_3.jpg", "IMG_1.jpg")));
+    }
+
+    @Test
+    public void unindexedFolders() {
+        assertEquals(Arrays.asList("a.jpg", "b.jpg"), FileSystemScanner.merge(index, "/sdcard/Download", Arrays.asList("b.jpg", "a.jpg")));
+        assertEquals(Arrays.asList("a.jpg", "b.jpg"), FileSystemScanner.merge(null, CAMERA, Arrays.asList("b.jpg", "a.jpg")));
+    }
+
+    @Test
+    public void scanReportsImageNames() throws IOException, InterruptedException {
+        File root = File.createTempFile("scan", "");
+        root.delete();
+        createFiles(new File(root, "Camera"), "IMG_1.jpg", "IMG_2.png", "notes.txt");
+        createFiles(new File(root, "Camera/Edited"), "IMG_1_edit.jpg");
+        createFiles(new File(root, "Hidden"), ".nomedia", "secret.jpg");
+        createFiles(new File(root, ".thumbnails"), "thumb.jpg");
+
+        final Map<String, List<String>> found = Collections.synchronizedMap(new HashMap<String, List<String>>());
+        final CountDownLatch done = new CountDownLatch(1);
+        new FileSystemScanner(Collections.singletonList(root)).scan(new FileSystemScanner.OnScanListener() {
+            @Override
+            public void onFolderFound(FolderModel folderModel, List<String> imageNames) {
+                assertEquals(imageNames.size(), folderModel.getImgCount());
+                List<String> sorted = new ArrayList<String>(imageNames);
+                Collections.sort(sorted);
+                found.put(folderModel.getDir(), sorted);
+            }
+
+            @Override
+            public void onScanFinished() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, found.size());
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_2.png"), found.get(new File(root, "Camera").getAbsolutePath()));
+        assertEquals(Collections.singletonList("IMG_1_edit.jpg"), found.get(new File(root, "Camera/Edited").getAbsolutePath()));
+    }
+
+    private static void createFiles(File dir, String... names) throws IOException {
+        dir.mkdirs();
+        for(String name : names){
+            new File(dir, name).createNewFile();
+        }
+    }
+}
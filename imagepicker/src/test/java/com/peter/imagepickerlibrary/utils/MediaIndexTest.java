@@ -0,0 +1,184 @@
+package com.peter.imagepickerlibrary.utils;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+import com.peter.imagepickerlibrary.model.FolderModel;
+import com.peter.imagepickerlibrary.model.ImageInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rows are grouped by folder and sorted by name in unsigned UTF-8 byte order, which is what indexOfImage searches by
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class MediaIndexTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // unsigned UTF-8 bytes, not String.compareTo: the two differ past the Basic Multilingual Plane
+    private static final Comparator<String> BYTE_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            byte[] x = a.getBytes(UTF_8);
+            byte[] y = b.getBytes(UTF_8);
+            for(int i = 0; i < Math.min(x.length, y.length); i++){
+                if(x[i] != y[i]){
+                    return (x[i] & 0xFF) - (y[i] & 0xFF);
+                }
+            }
+            return x.length - y.length;
+        }
+    };
+
+    @Test
+    public void groupsAndSorts() {
+        MediaIndex.Builder builder = new MediaIndex.Builder(0);
+        builder.add("/sdcard/DCIM/Camera/IMG_10.jpg", 10, 1000, 110, 4000, 3000);
+        builder.add("/sdcard/Pictures/b.png", 20, 2000, 120, 100, 200);
+        builder.add("/sdcard/DCIM/Camera/IMG_1.jpg", 11, 1100, 130, 4000, 3000);
+        builder.add("/sdcard/DCIM/Camera/IMG_2.jpg", 12, 1200, 100, 3000, 4000);
+        builder.add("/sdcard/Pictures/a.png", 21, 2100, 90, 300, 400);
+        MediaIndex index = builder.build();
+
+        assertEquals(5, index.getImageCount());
+        assertEquals(2, index.getFolderCount());
+        // folders in the order they first came, like the cursor ordered by date
+        assertEquals("/sdcard/DCIM/Camera", index.getFolderDir(0));
+        assertEquals("/sdcard/Pictures", index.getFolderDir(1));
+        assertEquals(0, index.indexOfFolder("/sdcard/DCIM/Camera"));
+        assertEquals(-1, index.indexOfFolder("/sdcard/DCIM"));
+        assertEquals(0, index.getLargestFolder());
+
+        assertEquals(Arrays.asList("IMG_1.jpg", "IMG_10.jpg", "IMG_2.jpg"), index.getFileNames(0));
+        assertEquals(Arrays.asList("a.png", "b.png"), index.getFileNames(1));
+        assertEquals(3, index.getFolderStart(1));
+
+        // the columns move with their row
+        int row = index.indexOfImage("/sdcard/DCIM/Camera/IMG_2.jpg");
+        assertEquals(2, row);
+        assertEquals(12, index.getId(row));
+        assertEquals(1200, index.getSize(row));
+        assertEquals(100, index.getDate(row));
+        assertEquals(3000, index.getWidth(row));
+        assertEquals(4000, index.getHeight(row));
+        assertEquals("/sdcard/DCIM/Camera/IMG_2.jpg", index.getPath(row));
+        assertEquals("/sdcard/Pictures/a.png", index.getPath(3));
+
+        // the cover is the newest image
+        assertEquals("/sdcard/DCIM/Camera/IMG_1.jpg", index.getFolderCoverPath(0));
+        assertEquals(130, index.getFolderLatestDate(0));
+        FolderModel pictures = index.getFolders().get(1);
+        assertEquals("/sdcard/Pictures", pictures.getDir());
+        assertEquals("/sdcard/Pictures/b.png", pictures.getFirstImgPath());
+        assertEquals(2, pictures.getImgCount());
+    }
+
+    @Test
+    public void notFound() {
+        MediaIndex.Builder builder = new MediaIndex.Builder(0);
+        for(String name : new String[]{"b", "d", "d0", "f"}){
+            builder.add("/dir/" + name, 1, 1, 1, 0, 0);
+        }
+        MediaIndex index = builder.build();
+
+        // before the first, between rows, a prefix of a row, a row as prefix, past the last
+        for(String name : new String[]{"a", "c", "", "d00", "e", "g", "B"}){
+            assertEquals(name, -1, index.indexOfImage("/dir/" + name));
+        }
+        assertEquals(-1, index.indexOfImage("/other/b"));
+        assertEquals(-1, index.indexOfImage("/dir/sub/b"));
+        assertEquals(-1, index.indexOfImage("nodir"));
+        assertEquals(2, index.indexOfImage("/dir/d0"));
+        assertEquals(2, index.indexOfImage(0, "d0"));
+    }
+
+    @Test
+    public void skipsPathsWithoutFolderOrName() {
+        MediaIndex.Builder builder = new MediaIndex.Builder(0);
+        builder.add("noslash.jpg", 1, 1, 1, 0, 0);
+        builder.add("/root.jpg", 2, 1, 1, 0, 0);
+        builder.add("/sdcard/dir/", 3, 1, 1, 0, 0);
+        builder.add("/sdcard/a.jpg", 4, 1, 1, 0, 0);
+        MediaIndex index = builder.build();
+
+        assertEquals(1, index.getImageCount());
+        assertEquals(1, index.getFolderCount());
+        assertEquals(4, index.getId(index.indexOfImage("/sdcard/a.jpg")));
+    }
+
+    @Test
+    public void emptyIndex() {
+        MediaIndex index = new MediaIndex.Builder(0).build();
+        assertEquals(0, index.getImageCount());
+        assertEquals(-1, index.getLargestFolder());
+        assertEquals(-1, index.indexOfImage("/sdcard/a.jpg"));
+        assertEquals(0, index.getFolders().size());
+    }
+
+    @Test
+    public void manyRows() {
+        // more rows than the builder starts with, non-ASCII names, rows of a folder spread over the cursor
+        Random random = new Random(3);
+        String[] dirs = {"/sdcard/DCIM/Camera", "/sdcard/\u7167\u7247", "/sdcard/Download", "/storage/0000-0000/DCIM"};
+        String[] alphabet = {"a", "B", "z", "0", "_", "\u00e9", "\u7167", "\ud83d\ude00", "\uffe0"};
+        Map<String, List<String>> names = new HashMap<String, List<String>>();
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        MediaIndex.Builder builder = new MediaIndex.Builder(16);
+        for(int id = 0; id < 3000; id++){
+            String dir = dirs[random.nextInt(dirs.length)];
+            StringBuilder name = new StringBuilder();
+            for(int i = 1 + random.nextInt(6); i > 0; i--){
+                name.append(alphabet[random.nextInt(alphabet.length)]);
+            }
+            String path = dir + "/" + name;
+            if(ids.containsKey(path)){
+                continue;
+            }
+            ids.put(path, id);
+            if(!names.containsKey(dir)){
+                names.put(dir, new ArrayList<String>());
+            }
+            names.get(dir).add(name.toString());
+            builder.add(path, id, id * 10, id, 0, 0);
+        }
+        MediaIndex index = builder.build();
+
+        assertEquals(ids.size(), index.getImageCount());
+        for(Map.Entry<String, List<String>> entry : names.entrySet()){
+            int folder = index.indexOfFolder(entry.getKey());
+            List<String> expected = new ArrayList<String>(entry.getValue());
+            Collections.sort(expected, BYTE_ORDER);
+            assertEquals(expected, new ArrayList<String>(index.getFileNames(folder)));
+            for(String name : expected){
+                String path = entry.getKey() + "/" + name;
+                int row = index.indexOfImage(path);
+                assertEquals(path, (int) ids.get(path), index.getId(row));
+                assertEquals(path, index.getPath(row));
+                if(!ids.containsKey(path + "a")){
+                    assertEquals(-1, index.indexOfImage(path + "a"));
+                }
+            }
+        }
+
+        ImageInfo info = new ImageInfo();
+        String path = dirs[1] + "/" + names.get(dirs[1]).get(0);
+        info.setPath(path);
+        index.fill(info);
+        assertEquals((long) ids.get(path), info.getId());
+        assertEquals(ids.get(path) * 10L, info.getSize());
+    }
+}
@@ -0,0 +1,121 @@
+package com.peter.imagepickerlibrary.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Buffers are reused best fit first, and all of them together never go over the byte budget
+ */
+public class ReadBufferPoolTest {
+    @Test
+    public void growsWithRoom() {
+        ReadBufferPool pool = new ReadBufferPool(2, 10000);
+        byte[] buffer = pool.acquire(100);
+        assertEquals(125, buffer.length);                   // a quarter more, for the next file of the folder
+        assertEquals(125, pool.getAllocatedBytes());
+        pool.release(buffer);
+
+        assertSame(buffer, pool.acquire(120));
+        pool.release(buffer);
+        assertEquals(10000, pool.acquire(9000).length);     // the room is cut at the budget
+    }
+
+    @Test
+    public void bestFit() {
+        ReadBufferPool pool = new ReadBufferPool(3, 100000);
+        byte[] small = pool.acquire(1000);
+        byte[] big = pool.acquire(4000);
+        pool.release(small);
+        pool.release(big);
+
+        byte[] buffer = pool.acquire(1100);
+        assertSame(small, buffer);                          // the smallest that fits
+        pool.release(buffer);
+        buffer = pool.acquire(3000);
+        assertSame(big, buffer);
+        pool.release(buffer);
+
+        // none fits: the biggest is replaced, the others are kept
+        buffer = pool.acquire(8000);
+        assertEquals(10000, buffer.length);
+        assertEquals(1250 + 10000, pool.getAllocatedBytes());
+        pool.release(buffer);
+        assertSame(small, pool.acquire(1));
+    }
+
+    @Test
+    public void dropsFreeBuffersToStayInBudget() {
+        ReadBufferPool pool = new ReadBufferPool(3, 1000);
+        byte[] a = pool.acquire(400);
+        byte[] b = pool.acquire(400);
+        assertEquals(1000, pool.getAllocatedBytes());
+        pool.release(a);
+        pool.release(b);
+
+        byte[] c = pool.acquire(900);
+        assertEquals(1000, c.length);
+        assertEquals(1000, pool.getAllocatedBytes());       // both free ones given back for it
+        pool.release(c);
+        assertEquals(1000, pool.acquire(1000).length);      // the biggest file that can be read into one
+    }
+
+    @Test
+    public void waitsForBytesInFlight() throws InterruptedException {
+        final ReadBufferPool pool = new ReadBufferPool(2, 1000);
+        byte[] first = pool.acquire(600);
+        assertEquals(750, first.length);
+
+        // a free slot, but the budget is held by the buffer in flight
+        Acquirer second = new Acquirer(pool, 600);
+        assertFalse(second.done.await(200, TimeUnit.MILLISECONDS));
+
+        pool.release(first);
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        assertEquals(750, second.buffer.get().length);
+        assertEquals(750, pool.getAllocatedBytes());        // first was dropped to make room
+    }
+
+    @Test
+    public void waitsForAFreeBuffer() throws InterruptedException {
+        ReadBufferPool pool = new ReadBufferPool(1, 1000);
+        byte[] only = pool.acquire(10);
+
+        Acquirer second = new Acquirer(pool, 10);
+        assertFalse(second.done.await(200, TimeUnit.MILLISECONDS));
+
+        pool.release(only);
+        assertTrue(second.done.await(5, TimeUnit.SECONDS));
+        assertSame(only, second.buffer.get());
+    }
+
+    /**
+     * Acquires on its own thread, acquire blocks
+     */
+    private static class Acquirer extends Thread {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<byte[]> buffer = new AtomicReference<byte[]>();
+        private ReadBufferPool pool;
+        private int minLength;
+
+        Acquirer(ReadBufferPool pool, int minLength) {
+            this.pool = pool;
+            this.minLength = minLength;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            buffer.set(pool.acquire(minLength));
+            done.countDown();
+        }
+    }
+}
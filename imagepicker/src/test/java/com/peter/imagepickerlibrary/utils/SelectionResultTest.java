@@ -0,0 +1,146 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.app.Application;
+import android.content.Intent;
+import android.net.Uri;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+import com.peter.imagepickerlibrary.model.ImageInfo;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What toIntent writes, read gives back, inline up to INLINE_LIMIT and through the file past it
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SelectionResultTest {
+    // made up from the path, so what's read back can be checked without keeping it
+    private static final MetadataSource METADATA = new MetadataSource() {
+        @Override
+        public void fill(ImageInfo info) {
+            String path = info.getPath();
+            info.setId(path.hashCode());
+            info.setSize(path.length() * 1000L);
+            info.setWidth(path.length());
+            info.setHeight(path.length() * 2);
+        }
+    };
+
+    @Test
+    public void emptySelection() throws IOException {
+        assertRoundTrip(new ArrayList<String>(), false);
+    }
+
+    @Test
+    public void inlineUpToLimit() throws IOException {
+        assertRoundTrip(folder("/storage/emulated/0/DCIM/Camera", SelectionResult.INLINE_LIMIT), false);
+    }
+
+    @Test
+    public void fileAboveLimit() throws IOException {
+        assertRoundTrip(folder("/storage/emulated/0/DCIM/Camera", SelectionResult.INLINE_LIMIT + 1), true);
+    }
+
+    @Test
+    public void sharedPrefixes() throws IOException {
+        List<String> paths = folder("/sdcard/Pictures", SelectionResult.INLINE_LIMIT);
+        paths.addAll(Arrays.asList(
+                "/sdcard/a",
+                "/sdcard/a.jpg",            // the previous path is all prefix
+                "/sdcard/a/b.jpg",
+                "/sdcard/ab.jpg",
+                "/sdcard/Pictures",         // a folder name as a path, shorter than what comes after
+                "/x.jpg",                   // nothing shared but the slash
+                "y.jpg"));                  // nothing shared at all
+        assertRoundTrip(paths, true);
+    }
+
+    @Test
+    public void nonAsciiPaths() throws IOException {
+        List<String> paths = folder("/sdcard/Pictures", SelectionResult.INLINE_LIMIT);
+        paths.addAll(Arrays.asList(
+                "/sdcard/\u7167\u7247/IMG_0001.jpg",      // CJK folder
+                "/sdcard/\u7167\u7247/IMG_0002.jpg",
+                "/sdcard/Fotos/\u00dcn\u00efc\u00f6d\u00e9.png",
+                "/sdcard/\ud83d\ude00/a.jpg",     // emoji, shares half of its surrogate pair with the next one
+                "/sdcard/\ud83d\ude01/b.jpg",
+                "/sdcard/nul\u0000char.jpg"));    // modified UTF-8 writes it in two bytes
+        assertRoundTrip(paths, true);
+
+        List<String> inline = folder("/sdcard/\u7167\u7247", 10);
+        inline.add("/sdcard/\ud83d\ude00.png");
+        assertRoundTrip(inline, false);
+    }
+
+    /**
+     * @param dir
+     * @param count
+     * @return count paths in the folder, named like a camera names them
+     */
+    private static List<String> folder(String dir, int count) {
+        List<String> paths = new ArrayList<String>();
+        for(int i = 0; i < count; i++){
+            paths.add(String.format("%s/IMG_2016%04d.jpg", dir, i));
+        }
+        return paths;
+    }
+
+    private static void assertRoundTrip(List<String> paths, boolean inFile) throws IOException {
+        Application context = RuntimeEnvironment.application;
+        Intent intent = SelectionResult.toIntent(context, paths, METADATA);
+
+        Uri uri = intent.getData();
+        if(inFile){
+            assertNotNull(uri);
+            // Robolectric's resolver doesn't go to the provider, hand it the file SelectionProvider would open
+            File file = new File(SelectionResult.getDir(context), uri.getLastPathSegment());
+            Shadows.shadowOf(context.getContentResolver()).registerInputStream(uri, new FileInputStream(file));
+        }
+        else {
+            assertNull(uri);
+        }
+
+        List<String> expected = new ArrayList<String>(paths);
+        Collections.sort(expected);
+
+        SelectionResult.Reader reader = SelectionResult.read(context, intent);
+        try {
+            assertEquals(expected.size(), reader.getCount());
+            ImageInfo info = new ImageInfo();
+            ImageInfo expectedInfo = new ImageInfo();
+            for(String path : expected){
+                assertTrue(reader.next(info));
+                expectedInfo.setPath(path);
+                METADATA.fill(expectedInfo);
+                assertEquals(path, info.getPath());
+                assertEquals(expectedInfo.getId(), info.getId());
+                assertEquals(expectedInfo.getSize(), info.getSize());
+                assertEquals(expectedInfo.getWidth(), info.getWidth());
+                assertEquals(expectedInfo.getHeight(), info.getHeight());
+            }
+            assertFalse(reader.next(info));
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.peter.imagepickerlibrary.utils;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records written to the packs are read back as they were written: from the mapping, past it, after the pack
+ * was closed to make room, and by a new store reading the files
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ThumbnailPackStoreTest {
+    private static final int BUCKET = 256;
+
+    private File images;
+    private File packs;
+    private Random random = new Random(7);
+
+    @Before
+    public void setUp() throws IOException {
+        images = createTempDir("images");
+        packs = createTempDir("packs");
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        List<String> paths = new ArrayList<String>();
+        List<byte[]> thumbnails = new ArrayList<byte[]>();
+        for(int i = 0; i < 20; i++){
+            paths.add(createImage("Camera", "IMG_" + i + ".jpg"));
+            thumbnails.add(randomBytes(1 + random.nextInt(20000)));
+            write(store, paths.get(i), BUCKET, thumbnails.get(i));
+        }
+        write(store, createImage("Camera", "empty.jpg"), BUCKET, new byte[0]);
+
+        for(int i = 0; i < paths.size(); i++){
+            assertBytes(thumbnails.get(i), store.getEncoded(paths.get(i), BUCKET));
+        }
+        assertBytes(new byte[0], store.getEncoded(images + "/Camera/empty.jpg", BUCKET));
+        assertNull(store.getEncoded(paths.get(0), BUCKET * 2));                     // another bucket, another pack
+        assertNull(store.getEncoded(createImage("Camera", "unknown.jpg"), BUCKET));
+    }
+
+    @Test
+    public void nonAsciiNames() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        String[] dirs = {"\u7167\u7247", "Fotos \u00dcn\u00efc\u00f6d\u00e9", "\ud83d\ude00"};
+        String[] names = {"\u5199\u771f.jpg", "\u00e9t\u00e9.png", "\ud83d\ude01 \ud83d\ude02.jpg"};
+        List<String> paths = new ArrayList<String>();
+        List<byte[]> thumbnails = new ArrayList<byte[]>();
+        for(String dir : dirs){
+            for(String name : names){
+                String path = createImage(dir, name);
+                byte[] data = randomBytes(100 + random.nextInt(1000));
+                write(store, path, BUCKET, data);
+                paths.add(path);
+                thumbnails.add(data);
+            }
+        }
+
+        ThumbnailPackStore reopened = new ThumbnailPackStore(packs);           // names read back from the files
+        for(int i = 0; i < paths.size(); i++){
+            assertBytes(thumbnails.get(i), store.getEncoded(paths.get(i), BUCKET));
+            assertBytes(thumbnails.get(i), reopened.getEncoded(paths.get(i), BUCKET));
+        }
+    }
+
+    @Test
+    public void appendedAfterMapping() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        String first = createImage("Camera", "IMG_1.jpg");
+        byte[] firstData = randomBytes(5000);
+        write(store, first, BUCKET, firstData);
+        assertBytes(firstData, store.getEncoded(first, BUCKET));                   // maps the pack
+
+        // past the end of the mapping, read without mapping the file again
+        String second = createImage("Camera", "IMG_2.jpg");
+        byte[] secondData = randomBytes(7000);
+        write(store, second, BUCKET, secondData);
+        assertBytes(secondData, store.getEncoded(second, BUCKET));
+        assertBytes(firstData, store.getEncoded(first, BUCKET));
+    }
+
+    @Test
+    public void latestRecordWins() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        String path = createImage("Camera", "IMG_1.jpg");
+        write(store, path, BUCKET, randomBytes(3000));
+        byte[] latest = randomBytes(2000);
+        write(store, path, BUCKET, latest);
+
+        assertBytes(latest, store.getEncoded(path, BUCKET));
+        assertBytes(latest, new ThumbnailPackStore(packs).getEncoded(path, BUCKET));
+    }
+
+    @Test
+    public void modifiedImageIsStale() throws IOException {
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        String path = createImage("Camera", "IMG_1.jpg");
+        write(store, path, BUCKET, randomBytes(1000));
+
+        assertTrue(new File(path).setLastModified(new File(path).lastModified() + 60000));
+        assertNull(store.getEncoded(path, BUCKET));
+        assertNull(new ThumbnailPackStore(packs).getEncoded(path, BUCKET));
+    }
+
+    @Test
+    public void closedPacksReadBack() throws IOException {
+        // more folders than packs are kept open, the first ones are closed and opened again
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        List<String> paths = new ArrayList<String>();
+        List<byte[]> thumbnails = new ArrayList<byte[]>();
+        for(int round = 0; round < 3; round++){
+            for(int folder = 0; folder < 20; folder++){
+                String path = createImage("folder" + folder, "IMG_" + round + ".jpg");
+                byte[] data = randomBytes(100 + random.nextInt(5000));
+                write(store, path, BUCKET, data);
+                paths.add(path);
+                thumbnails.add(data);
+            }
+        }
+
+        for(int i = 0; i < paths.size(); i++){
+            assertBytes(thumbnails.get(i), store.getEncoded(paths.get(i), BUCKET));
+        }
+        ThumbnailPackStore reopened = new ThumbnailPackStore(packs);
+        for(int i = 0; i < paths.size(); i++){
+            assertBytes(thumbnails.get(i), reopened.getEncoded(paths.get(i), BUCKET));
+        }
+    }
+
+    @Test
+    public void collidingDirs() throws IOException {
+        // "Aa" and "BB" hash the same, so do the paths ending in them: both packs would get the same name
+        ThumbnailPackStore store = new ThumbnailPackStore(packs);
+        assertEquals(new File(images, "Aa").getPath().hashCode(), new File(images, "BB").getPath().hashCode());
+        List<String> paths = new ArrayList<String>();
+        List<byte[]> thumbnails = new ArrayList<byte[]>();
+        for(int i = 0; i < 10; i++){
+            for(String dir : new String[]{"Aa", "BB"}){
+                String path = createImage(dir, "IMG_" + i + ".jpg");
+                byte[] data = randomBytes(100 + random.nextInt(5000));
+                write(store, path, BUCKET, data);
+                paths.add(path);
+                thumbnails.add(data);
+                assertBytes(data, store.getEncoded(path, BUCKET));         // both mapped while the other appends
+            }
+        }
+
+        assertEquals(2, packs.list().length);
+        ThumbnailPackStore reopened = new ThumbnailPackStore(packs);           // finds each folder's file again
+        for(int i = 0; i < paths.size(); i++){
+            assertBytes(thumbnails.get(i), store.getEncoded(paths.get(i), BUCKET));
+            assertBytes(thumbnails.get(i), reopened.getEncoded(paths.get(i), BUCKET));
+        }
+    }
+
+    private static void write(ThumbnailPackStore store, String path, int bucket, byte[] data) {
+        store.writeEncoded(path, bucket, new File(path).lastModified(), data);
+    }
+
+    private static void assertBytes(byte[] expected, ByteBuffer actual) {
+        assertNotNull(actual);
+        byte[] bytes = new byte[actual.remaining()];
+        actual.duplicate().get(bytes);
+        assertArrayEquals(expected, bytes);
+    }
+
+    private String createImage(String dir, String name) throws IOException {
+        File folder = new File(images, dir);
+        folder.mkdirs();
+        File file = new File(folder, name);
+        file.createNewFile();
+        return file.getPath();
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+}
@@ -0,0 +1,76 @@
+package com.peter.imagepickerlibrary.utils;
+
+import android.database.MatrixCursor;
+import android.provider.MediaStore;
+
+import com.peter.imagepickerlibrary.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paths and day boundaries are copied out of the cursor in one pass, the cursor is closed once read
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class TimelineTest {
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final String[] COLUMNS = {MediaStore.Images.Media.DATA, MediaStore.Images.Media.DATE_TAKEN, MediaStore.Images.Media.DATE_MODIFIED};
+
+    @Test
+    public void pathsAndSections() {
+        long today = noon(20000);
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[]{"/sdcard/DCIM/Camera/IMG_3.jpg", today, 0L});
+        cursor.addRow(new Object[]{"/sdcard/Pictures/\u7167\u7247.png", today - 1000, 0L});
+        cursor.addRow(new Object[]{"/sdcard/DCIM/Camera/IMG_2.jpg", today - DAY, 0L});
+        cursor.addRow(new Object[]{"/sdcard/Download/a.jpg", null, (today - 3 * DAY) / 1000});      // no EXIF date, seconds
+        cursor.addRow(new Object[]{"/sdcard/DCIM/Camera/IMG_1.jpg", today - 3 * DAY - 1000, 0L});
+        Timeline timeline = Timeline.fromCursor(cursor);
+
+        assertTrue(cursor.isClosed());
+        assertEquals(5, timeline.getCount());
+        assertEquals("/sdcard/DCIM/Camera/IMG_3.jpg", timeline.getPath(0));
+        assertEquals("/sdcard/Pictures/\u7167\u7247.png", timeline.getPath(1));
+        assertEquals("/sdcard/Download/a.jpg", timeline.getPath(3));
+        assertEquals("/sdcard/DCIM/Camera/IMG_1.jpg", timeline.getPath(4));
+
+        assertEquals(3, timeline.getSectionLabels().length);
+        assertEquals(0, timeline.getSectionStart(0));
+        assertEquals(2, timeline.getSectionStart(1));
+        assertEquals(3, timeline.getSectionStart(2));
+        assertTrue(timeline.isSectionStart(3));
+        assertFalse(timeline.isSectionStart(4));
+        assertEquals(0, timeline.getSectionForPosition(1));
+        assertEquals(2, timeline.getSectionForPosition(4));
+
+        assertEquals(2, timeline.getPositionForDate(today - DAY));
+        assertEquals(3, timeline.getPositionForDate(today - 2 * DAY));          // nothing that day, the older one
+        assertEquals(4, timeline.getPositionForDate(today - 30 * DAY));         // before everything, the last one
+    }
+
+    @Test
+    public void empty() {
+        Timeline timeline = Timeline.fromCursor(new MatrixCursor(COLUMNS));
+        assertEquals(0, timeline.getCount());
+        assertEquals(0, timeline.getSectionLabels().length);
+        assertEquals(0, timeline.getSectionStart(0));
+    }
+
+    /**
+     * @param day days since epoch
+     * @return noon of the day in local time, far from both day boundaries
+     */
+    private static long noon(int day) {
+        long utc = day * DAY + DAY / 2;
+        return utc - TimeZone.getDefault().getOffset(utc);
+    }
+}
@@ -2,13 +2,14 @@ package com.peter.imagepicker;
 
 import android.app.ProgressDialog;
 import android.content.ContentResolver;
-import android.database.Cursor;
-import android.net.Uri;
+import android.content.Intent;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Environment;
-import android.provider.MediaStore;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.GridLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.GridView;
@@ -18,15 +19,30 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.peter.imagepickerlibrary.model.FolderModel;
+import com.peter.imagepickerlibrary.utils.DuplicateIndex;
+import com.peter.imagepickerlibrary.utils.FileSystemScanner;
 import com.peter.imagepickerlibrary.utils.ImageAdapter;
+import com.peter.imagepickerlibrary.utils.ImageFileFilter;
+import com.peter.imagepickerlibrary.utils.ImageGridAdapter;
+import com.peter.imagepickerlibrary.utils.ImageLoader;
+import com.peter.imagepickerlibrary.utils.LoadScope;
+import com.peter.imagepickerlibrary.utils.MediaIndex;
+import com.peter.imagepickerlibrary.utils.SelectionResult;
+import com.peter.imagepickerlibrary.utils.ThumbnailPackStore;
+import com.peter.imagepickerlibrary.utils.ThumbnailPregenerator;
+import com.peter.imagepickerlibrary.utils.Timeline;
+import com.peter.imagepickerlibrary.utils.TimelineAdapter;
 import com.peter.imagepickerlibrary.ListDirPopupWindow;
 
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -34,25 +50,45 @@ import java.util.Set;
  * 
  */
 public class ImagePicker extends AppCompatActivity {
-    private GridView mainGridView;
+    private RecyclerView mainRecyclerView;      // the folders
+    private GridLayoutManager gridLayoutManager;
+    private GridView mainGridView;              // the timeline, for its fast scroller
     private List<String> imageList;
-    private ImageAdapter adapter;
+    private ImageGridAdapter adapter;
 
     private RelativeLayout bottomLayout;
     private TextView dirName;
     private TextView dirCount;
 
     private File currentDir;
-    private int maxPicCount;
 
-    private List<FolderModel> folderList = new ArrayList<FolderModel>();
+    private MediaIndex mediaIndex;              // what MediaStore has, folders and images
+    private List<FolderModel> virtualFolders = new ArrayList<FolderModel>();    // "All images"
+    private List<FolderModel> scannedFolders = new ArrayList<FolderModel>();    // found by the FileSystemScanner only
+    private Map<Integer, FolderModel> mergedFolders = new HashMap<Integer, FolderModel>();  // MediaStore folder -> as found on disk, if it differs
+    private List<FolderModel> folderList = new FolderList();                   // all of them, for the folder list
 
     private ProgressDialog progressDialog;
 
     private static final int DATA_LOADED = 0x110;
+    private static final int FOLDER_FOUND = 0x111;
+    private static final int SELECTION_READY = 0x112;
+
+    private static final int GRID_COLUMNS = 3;
+
+    // to drop the folders the FileSystemScanner finds more than once
+    private Set<String> dirPathSet = new HashSet<String>();
 
     private ListDirPopupWindow popupWindow;
 
+    private DuplicateIndex duplicateIndex;
+
+    private FileSystemScanner fileSystemScanner;
+
+    private Timeline timeline;                  // "All images", across every folder
+
+    private LoadScope loadScope;                // the grid's thumbnails, cancelled in onDestroy
+
     private Handler handler = new Handler(){
         @Override
         public void handleMessage(android.os.Message msg) {
@@ -62,6 +98,32 @@ public class ImagePicker extends AppCompatActivity {
                 bindDataToView();
 
                 initPopupWindow();
+
+                startDuplicateIndex();
+
+                startFileSystemScan();
+
+                // thumbnails of the big folders for next time, at the size of a grid cell (gridview_item is 100dp high)
+                float density = getResources().getDisplayMetrics().density;
+                ThumbnailPregenerator.schedule(ImagePicker.this, getResources().getDisplayMetrics().widthPixels / 3, (int) (100 * density));
+            }
+            else if(msg.what == FOLDER_FOUND){
+                FolderModel folderModel = (FolderModel) msg.obj;
+                int folder = mediaIndex != null ? mediaIndex.indexOfFolder(folderModel.getDir()) : -1;
+                if(folder >= 0){
+                    mergedFolders.put(folder, folderModel);
+                    popupWindow.notifyDataSetChanged();
+                }
+                else if(dirPathSet.add(folderModel.getDir())){
+                    scannedFolders.add(folderModel);
+                    popupWindow.notifyDataSetChanged();
+                }
+            }
+            else if(msg.what == SELECTION_READY){
+                if(msg.obj != null){
+                    setResult(RESULT_OK, (Intent) msg.obj);
+                }
+                finish();
             }
         }
     };
@@ -71,12 +133,28 @@ public class ImagePicker extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.image_picker);
 
+        // brings back the thumbnails of the last session while MediaStore is being queried
+        ImageLoader.getInstance(3, ImageLoader.Type.LIFO).enableWarmStart(this);
+        loadScope = ImageLoader.getInstance(3, ImageLoader.Type.LIFO).newScope();
+
         initView();
         initData();
         initEvent();
+
+        // inflate the first screen of cells while MediaStore is being queried (gridview_item is 100dp high)
+        int rows = (int) (getResources().getDisplayMetrics().heightPixels / (100 * getResources().getDisplayMetrics().density)) + 1;
+        adapter.prefetchViews(mainRecyclerView, rows * GRID_COLUMNS);
+        mainRecyclerView.setAdapter(adapter);
     }
 
     private void initView() {
+        mainRecyclerView = (RecyclerView) findViewById(R.id.mainRecyclerView);
+        gridLayoutManager = new GridLayoutManager(this, GRID_COLUMNS);
+        mainRecyclerView.setLayoutManager(gridLayoutManager);
+        mainRecyclerView.addItemDecoration(new GridSpacing(getResources().getDimensionPixelSize(R.dimen.grid_spacing)));
+        adapter = new ImageGridAdapter(this);
+        adapter.setLoadScope(loadScope);
+
         mainGridView = (GridView) findViewById(R.id.mainGridView);
         bottomLayout = (RelativeLayout) findViewById(R.id.bottom_layout);
         dirName = (TextView) findViewById(R.id.dir_name);
@@ -98,74 +176,142 @@ public class ImagePicker extends AppCompatActivity {
         new Thread(){
             @Override
             public void run() {
-                Uri imgUri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
                 ContentResolver resolver = ImagePicker.this.getContentResolver();
-                Cursor cursor = resolver.query(
-                        imgUri,
-                        null,
-                        MediaStore.Images.Media.MIME_TYPE + " = ? or " + MediaStore.Images.Media.MIME_TYPE + " = ? ",
-                        new String[]{"image/jpeg", "image/png"},
-                        MediaStore.Images.Media.DATE_MODIFIED);
-
-                // to prevent iterate through parentFile(folder) more than once
-                // will be automatically recycled after this method is done as dirPathSet is declared inside the method
-                Set<String> dirPathSet = new HashSet<String>();
-
-                while(cursor.moveToNext()){
-                    String path = cursor.
-                            getString(cursor.getColumnIndex(MediaStore.Images.Media.DATA));     // get image path
-
-                    File parentFile = new File(path).getParentFile();
+                mediaIndex = MediaIndex.fromMediaStore(resolver);
+                // the loader takes the sizes from it, so it doesn't have to read them from the files
+                ImageLoader.getInstance(3, ImageLoader.Type.LIFO).setMediaIndex(mediaIndex);
+                // the folder of the last session, its thumbnails are the ones warmed up
+                String lastFolder = ImageLoader.getInstance(3, ImageLoader.Type.LIFO).getLastFolder();
+                if(lastFolder != null && ((mediaIndex != null && mediaIndex.indexOfFolder(lastFolder) >= 0) || new File(lastFolder).isDirectory())){
+                    currentDir = new File(lastFolder);
+                }
+                else if(mediaIndex != null && mediaIndex.getLargestFolder() >= 0){
+                    currentDir = new File(mediaIndex.getFolderDir(mediaIndex.getLargestFolder()));
+                }
 
-                    if(parentFile == null)      // it is still possible that content provider couldn't find a file with a path
-                        continue;
+                // the virtual folder goes first in the list
+                timeline = Timeline.query(resolver);
+                if(timeline != null && timeline.getCount() > 0){
+                    FolderModel allImages = new FolderModel();
+                    allImages.setTimeline(true);
+                    allImages.setDirName(getResources().getString(R.string.all_images));
+                    allImages.setFirstImgPath(timeline.getPath(0));
+                    allImages.setImgCount(timeline.getCount());
+                    virtualFolders.add(allImages);
+                }
 
-                    String dirPath = parentFile.getAbsolutePath();
+                // to inform handler that the scan is finished
+                handler.sendEmptyMessage(DATA_LOADED);    // any value
 
-                    FolderModel folderModel = null;
+            }
+        }.start();
+    }
 
-                    if(dirPathSet.contains(dirPath)){
-                        continue;
-                    }
-                    else {
-                        dirPathSet.add(dirPath);
-                        folderModel = new FolderModel();
-                        folderModel.setDir(dirPath);
-                        folderModel.setFirstImgPath(path);
-                    }
+    /**
+     * Back hands the picked images to whoever started the picker
+     */
+    @Override
+    public void onBackPressed() {
+        final Set<String> selected = ImageAdapter.getSelectedImages();
+        if(selected.isEmpty()){
+            super.onBackPressed();
+            return;
+        }
 
+        new Thread(){
+            @Override
+            public void run() {
+                Intent data = null;
+                try {
+                    data = SelectionResult.toIntent(ImagePicker.this, selected, mediaIndex != null ? mediaIndex
+                            : SelectionResult.defaultMetadata(ImageLoader.getInstance(3, ImageLoader.Type.LIFO).getDimensionCache()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                handler.obtainMessage(SELECTION_READY, data).sendToTarget();
+            }
+        }.start();
+    }
 
-                    if(parentFile.list() == null)       // it is possible... maybe ".../storage/emulated/0" or something?
-                        continue;
+    @Override
+    protected void onStop() {
+        super.onStop();
+        ImageLoader imageLoader = ImageLoader.getInstance(3, ImageLoader.Type.LIFO);
+        if(currentDir != null){
+            imageLoader.setLastPosition(currentDir.getAbsolutePath(), gridLayoutManager.findFirstVisibleItemPosition());
+        }
+        else {
+            imageLoader.setLastPosition(null, 0);       // the timeline, or nothing scanned
+        }
+        imageLoader.flushDiskCache();
+    }
 
-                    int picCount = parentFile.list(new FilenameFilter() {
-                        @Override
-                        public boolean accept(File dir, String filename) {
-                            if(filename.toLowerCase().endsWith(".jpg") || filename.toLowerCase().endsWith(".jpeg") || filename.toLowerCase().endsWith(".png")){
-                                return true;
-                            }
-                            else {
-                                return false;
-                            }
-                        }
-                    }).length;
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        loadScope.cancel();
+        if(popupWindow != null){
+            popupWindow.dismiss();              // cancels its covers
+        }
+        if(duplicateIndex != null){
+            duplicateIndex.cancel();
+        }
+        if(timeline != null){
+            timeline.close();
+        }
+        if(fileSystemScanner != null){
+            fileSystemScanner.cancel();
+        }
+    }
 
-                    folderModel.setImgCount(picCount);
+    /**
+     * Hash all the folders in the background, and mark the near duplicates in the grid as their folders are done
+     */
+    private void startDuplicateIndex() {
+        // the grid's cells are a third of the width and 100dp high, their thumbnails are hashed when they're cached
+        int thumbnailBucket = ThumbnailPackStore.getSizeBucket(getResources().getDisplayMetrics().widthPixels / 3,
+                (int) (100 * getResources().getDisplayMetrics().density));
+        duplicateIndex = new DuplicateIndex(new File(getCacheDir(), "phash.idx"), ImageLoader.getInstance(3, ImageLoader.Type.LIFO), thumbnailBucket);
+        duplicateIndex.indexFolders(folderList, new DuplicateIndex.OnIndexListener() {
+            @Override
+            public void onFolderIndexed(String dir, Map<String, Integer> groups) {
+                if(adapter != null && currentDir != null && currentDir.getAbsolutePath().equals(dir)){
+                    adapter.setDuplicateGroups(groups);
+                }
+            }
+        });
+    }
 
-                    folderList.add(folderModel);
+    /**
+     * MediaStore misses images that haven't been scanned yet, walk the storage to find them
+     * Folders MediaStore doesn't have show up in the folder list as they are found,
+     * the ones it has get their count from the images on disk when it's missing some
+     */
+    private void startFileSystemScan() {
+        List<File> roots = new ArrayList<File>();
+        roots.add(Environment.getExternalStorageDirectory());
 
-                    if(picCount > maxPicCount){
-                        maxPicCount = picCount;
-                        currentDir = parentFile;
+        fileSystemScanner = new FileSystemScanner(roots);
+        fileSystemScanner.scan(new FileSystemScanner.OnScanListener() {
+            @Override
+            public void onFolderFound(FolderModel folderModel, List<String> imageNames) {
+                // merged here, off the UI thread; a folder MediaStore has as it is on disk needs nothing
+                int folder = mediaIndex != null ? mediaIndex.indexOfFolder(folderModel.getDir()) : -1;
+                int count = FileSystemScanner.merge(mediaIndex, folderModel.getDir(), imageNames).size();
+                if(folder >= 0){
+                    if(count == mediaIndex.getFolderImageCount(folder)){
+                        return;
                     }
+                    folderModel.setFirstImgPath(mediaIndex.getFolderCoverPath(folder));
                 }
-                cursor.close();
-
-                // to inform handler that the scan is finished
-                handler.sendEmptyMessage(DATA_LOADED);    // any value
+                folderModel.setImgCount(count);
+                handler.obtainMessage(FOLDER_FOUND, folderModel).sendToTarget();
+            }
 
+            @Override
+            public void onScanFinished() {
             }
-        }.start();
+        });
     }
 
     private void initEvent() {
@@ -195,26 +341,30 @@ public class ImagePicker extends AppCompatActivity {
         popupWindow.setOnDirSelectListener(new ListDirPopupWindow.OnDirSelectListener() {
             @Override
             public void onSelected(FolderModel folderModel) {
+                if(folderModel.isTimeline()){
+                    showTimeline(folderModel);
+                    return;
+                }
+                mainGridView.setVisibility(View.GONE);
+                mainGridView.setAdapter(null);
+                mainRecyclerView.setVisibility(View.VISIBLE);
+
                 // update folder
                 currentDir = new File(folderModel.getDir());
                 // update images
-                imageList = Arrays.asList(currentDir.list(new FilenameFilter() {
-                    @Override
-                    public boolean accept(File dir, String filename) {
-                        if(filename.toLowerCase().endsWith(".jpg") || filename.toLowerCase().endsWith(".jpeg") || filename.toLowerCase().endsWith(".png")){
-                            return true;
-                        }
-                        else {
-                            return false;
+                imageList = getImageNames(currentDir);
+                // update adapter, cells already showing their image are kept
+                adapter.setImages(currentDir.getAbsolutePath(), imageList);
+                if(duplicateIndex != null){
+                    duplicateIndex.findDuplicateGroups(currentDir.getAbsolutePath(), DuplicateIndex.DEFAULT_MAX_DISTANCE, new DuplicateIndex.OnGroupsListener() {
+                        @Override
+                        public void onGroupsFound(String dir, Map<String, Integer> groups) {
+                            if(currentDir != null && currentDir.getAbsolutePath().equals(dir)){     // another folder may be shown by now
+                                adapter.setDuplicateGroups(groups);
+                            }
                         }
-                    }
-                }));
-                // update adapter
-                adapter = new ImageAdapter(ImagePicker.this, imageList, currentDir.getAbsolutePath());
-
-//                adapter.notifyDataSetChanged();
-
-                mainGridView.setAdapter(adapter);
+                    });
+                }
 
                 // update TextView
                 dirCount.setText(imageList.size() + "");
@@ -225,6 +375,25 @@ public class ImagePicker extends AppCompatActivity {
         });
     }
 
+    /**
+     * Show all images by date, with the fast scroller showing the day
+     * @param folderModel
+     */
+    private void showTimeline(FolderModel folderModel) {
+        currentDir = null;
+        TimelineAdapter timelineAdapter = new TimelineAdapter(this, timeline);
+        timelineAdapter.setLoadScope(loadScope);
+        mainRecyclerView.setVisibility(View.GONE);
+        mainGridView.setVisibility(View.VISIBLE);
+        mainGridView.setAdapter(timelineAdapter);
+        mainGridView.setFastScrollEnabled(true);
+
+        dirCount.setText(folderModel.getImgCount() + "");
+        dirName.setText(folderModel.getDirName());
+
+        popupWindow.dismiss();
+    }
+
     /**
      *  turn content area to light
      */
@@ -251,12 +420,71 @@ public class ImagePicker extends AppCompatActivity {
             return;
         }
 
-        imageList = Arrays.asList(currentDir.list());
+        imageList = getImageNames(currentDir);
 
-        adapter = new ImageAdapter(this, imageList, currentDir.getAbsolutePath());
-        mainGridView.setAdapter(adapter);
+        adapter.setImages(currentDir.getAbsolutePath(), imageList);
+        ImageLoader imageLoader = ImageLoader.getInstance(3, ImageLoader.Type.LIFO);
+        if(currentDir.getAbsolutePath().equals(imageLoader.getLastFolder()) && imageLoader.getLastPosition() > 0 && imageLoader.getLastPosition() < imageList.size()){
+            gridLayoutManager.scrollToPositionWithOffset(imageLoader.getLastPosition(), 0);
+        }
 
-        dirCount.setText(maxPicCount + "");
+        dirCount.setText(imageList.size() + "");
         dirName.setText(currentDir.getName());
     }
+
+    /**
+     * @param dir
+     * @return file names of the images in dir as it is on disk, the index's list if it has exactly those
+     */
+    private List<String> getImageNames(File dir) {
+        String[] names = dir.list(new ImageFileFilter());
+        if(names == null){
+            return new ArrayList<String>();
+        }
+        return FileSystemScanner.merge(mediaIndex, dir.getAbsolutePath(), Arrays.asList(names));
+    }
+
+    /**
+     * Space between the cells of the folder grid, none around it, like GridView's horizontalSpacing and verticalSpacing
+     */
+    private static class GridSpacing extends RecyclerView.ItemDecoration {
+        private int spacing;
+
+        GridSpacing(int spacing) {
+            this.spacing = spacing;
+        }
+
+        @Override
+        public void getItemOffsets(Rect outRect, View view, RecyclerView parent, RecyclerView.State state) {
+            int column = parent.getChildAdapterPosition(view) % GRID_COLUMNS;
+            outRect.left = column * spacing / GRID_COLUMNS;
+            outRect.right = spacing - (column + 1) * spacing / GRID_COLUMNS;
+            outRect.bottom = spacing;
+        }
+    }
+
+    /**
+     * "All images", then the MediaStore folders, then the ones only the FileSystemScanner found
+     * The MediaStore folders are made as the list asks for them, unless the scan found images MediaStore misses
+     */
+    private class FolderList extends AbstractList<FolderModel> {
+        @Override
+        public FolderModel get(int position) {
+            if(position < virtualFolders.size()){
+                return virtualFolders.get(position);
+            }
+            position -= virtualFolders.size();
+            int indexed = mediaIndex != null ? mediaIndex.getFolderCount() : 0;
+            if(position < indexed){
+                FolderModel merged = mergedFolders.get(position);
+                return merged != null ? merged : mediaIndex.getFolders().get(position);
+            }
+            return scannedFolders.get(position - indexed);
+        }
+
+        @Override
+        public int size() {
+            return virtualFolders.size() + (mediaIndex != null ? mediaIndex.getFolderCount() : 0) + scannedFolders.size();
+        }
+    }
 }
@@ -13,6 +13,10 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import com.peter.imagepickerlibrary.utils.SelectionResult;
+
+import java.io.IOException;
+
 import java.util.jar.Manifest;
 
 public class MainActivity extends AppCompatActivity {
@@ -21,6 +25,8 @@ public class MainActivity extends AppCompatActivity {
     // permission
     private static final int MY_PERMISSION_REQUEST_READ_EXTERNAL_STORAGE = 5221;
 
+    private static final int REQUEST_PICK = 5222;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -36,12 +42,12 @@ public class MainActivity extends AppCompatActivity {
                         requestPermissions(new String[]{android.Manifest.permission.READ_EXTERNAL_STORAGE}, MY_PERMISSION_REQUEST_READ_EXTERNAL_STORAGE);
                     }else {
                         Intent intent = new Intent(MainActivity.this, ImagePicker.class);
-                        startActivity(intent);
+                        startActivityForResult(intent, REQUEST_PICK);
                     }
                 }
                 else {
                     Intent intent = new Intent(MainActivity.this, ImagePicker.class);
-                    startActivity(intent);
+                    startActivityForResult(intent, REQUEST_PICK);
                 }
             }
         });
@@ -69,6 +75,25 @@ public class MainActivity extends AppCompatActivity {
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if(requestCode != REQUEST_PICK || resultCode != RESULT_OK || data == null){
+            return;
+        }
+
+        try {
+            SelectionResult.Reader reader = SelectionResult.read(this, data);
+            try {
+                Toast.makeText(MainActivity.this, getString(R.string.picked_images, reader.getCount()), Toast.LENGTH_SHORT).show();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         switch (requestCode){
@@ -76,7 +101,7 @@ public class MainActivity extends AppCompatActivity {
                 if (grantResults[0] == PackageManager.PERMISSION_GRANTED){
                     button_pick.setEnabled(true);
                     Intent intent = new Intent(MainActivity.this, ImagePicker.class);
-                    startActivity(intent);
+                    startActivityForResult(intent, REQUEST_PICK);
                 } else {
                     button_pick.setEnabled(false);
                 }